@@ -0,0 +1,127 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+
+/*
+ *  Requests the recommendations of many users in a single batch, e.g. for every user.
+ *  Usage: java BatchClient k [user id ...]
+ *  Without user ids all the users are requested. Writes a "user, poi, poi, ..." line for each user,
+ *  in the order the blocks of users arrive.
+ */
+public class BatchClient
+{
+    /********************* Connection Settings ***********************/
+
+            private static final int PORT = 4322;
+            private static final String IP_ADDRESS = "localhost";
+
+    /*****************************************************************/
+
+    //  Main Method
+    public static void main(String[] args)
+    {
+        /*
+         *  k: number of POIs.
+         *  n: number of users in a part.
+         *  count: number of POIs of a user.
+         *  users: number of users received.
+         */
+        int k, n, count, users = 0;
+        long start;
+        Link request = null;
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+
+        if (args.length < 1)
+        {
+            System.err.println(USAGE);
+            System.exit(0);
+        }
+
+        try
+        {
+            k = Integer.parseInt(args[0]);
+
+            //  Connecting to Master.
+            request = new Link(SocketChannel.open(new InetSocketAddress(IP_ADDRESS, PORT)));
+            start = System.nanoTime();
+
+            //  Sending the batch.
+            request.begin(Link.BATCH);
+            request.putInt(TAG);
+            request.putInt(k);
+            request.putInt((args.length == 1) ? -1 : args.length - 1);
+            for(int i = 1; i < args.length; i++)
+                request.putInt(Integer.parseInt(args[i]));
+            request.send();
+
+            //  Receiving the parts, till the empty one.
+            while(true)
+            {
+                if (request.receive() != Link.PART || request.getInt() != TAG)
+                    throw new IOException("Unexpected reply.");
+
+                n = request.getInt();
+
+                if (n == 0)
+                    break;
+
+                if (n < 0)
+                {
+                    System.err.println(NO_MODEL);
+                    break;
+                }
+
+                for(int i = 0; i < n; i++)
+                {
+                    out.print(request.getInt());
+                    count = request.getInt();
+
+                    if (count < 0)      //  u or k are too big.
+                        out.print(", -");
+
+                    for(int j = 0; j < count; j++)
+                    {
+                        out.print(", ");
+                        out.print(request.getInt());
+                    }
+                    out.println();
+                }
+
+                users += n;
+            }
+
+            out.flush();
+            System.err.printf(RESULTS, users, (System.nanoTime() - start) / 1e6);
+        }
+        catch(NumberFormatException nfExc)
+        {
+            System.err.println(USAGE);
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                //  Closing the connection.
+                if (request != null)
+                    request.close();
+            }
+            catch(IOException ioExc)
+            {
+                ioExc.printStackTrace();
+            }
+        }
+    }
+
+    //  The tag of the batch, only one is sent.
+    private static final int TAG = 1;
+
+    /************************* Output Messages ***************************/
+
+    private static final String USAGE = "Usage: java BatchClient k [user id ...]";
+    private static final String NO_MODEL = "No model has been trained yet.";
+    private static final String RESULTS = "%d users in %.1f ms.\n";
+}
@@ -0,0 +1,288 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+ *  The pois, loaded from a file of "id, latitude, longitude, category, name" lines, the name being the rest of the line.
+ *  The ids are the rows of Y. A poi missing from the file has no coordinates and is never a candidate.
+ *
+ *  A grid over latitude & longitude, with cells of CELL degrees, is used as a spatial index. The pois are sorted
+ *  by cell, so the pois of a row of consecutive cells are found with two binary searches. A query within R km
+ *  visits the cells overlapping its bounding box and keeps the pois within R km by the haversine distance.
+ */
+public class Catalogue
+{
+    private int size;                       //  The number of pois, the largest id + 1.
+    private double[] latitudes, longitudes;
+    private int[] categories;               //  -1 for a missing poi.
+    private String[] names;
+    private ArrayList<String> labels = new ArrayList<String>();     //  The name of each category.
+    //  Grid: the cell of each poi, sorted, and the poi in each position.
+    private long[] cells;
+    private int[] order;
+    //  The pois of each category.
+    private int[][] members;
+
+    //  Loads the file.
+    public Catalogue(String path) throws IOException
+    {
+        String line;
+        String[] fields;
+        int id, category, count = 0;
+        HashMap<String, Integer> index = new HashMap<String, Integer>();
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+
+        latitudes = new double[1024];
+        longitudes = new double[1024];
+        categories = new int[1024];
+        names = new String[1024];
+        Arrays.fill(categories, -1);
+
+        try
+        {
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.trim().isEmpty())
+                    continue;
+
+                fields = line.split(",", 5);
+                if (fields.length < 4)
+                    throw new IllegalArgumentException("Malformed poi: " + line);
+
+                id = Integer.parseInt(fields[0].trim());
+                if (id < 0)
+                    throw new IllegalArgumentException("Malformed poi: " + line);
+
+                if (id >= latitudes.length)
+                    grow(Math.max(2 * latitudes.length, id + 1));
+
+                if (categories[id] < 0)
+                    count++;
+
+                category = index.containsKey(fields[3].trim()) ? index.get(fields[3].trim()) : labels.size();
+                if (category == labels.size())
+                {
+                    index.put(fields[3].trim(), category);
+                    labels.add(fields[3].trim());
+                }
+
+                latitudes[id] = Double.parseDouble(fields[1].trim());
+                longitudes[id] = Double.parseDouble(fields[2].trim());
+                categories[id] = category;
+                names[id] = (fields.length == 5) ? fields[4].trim() : "";
+                size = Math.max(size, id + 1);
+            }
+        }
+        catch(NumberFormatException nfExc)
+        {
+            throw new IllegalArgumentException("Malformed poi.", nfExc);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        build(count);
+    }
+
+    public int size() { return size; }
+
+    public boolean contains(int id) { return id >= 0 && id < size && categories[id] >= 0; }
+
+    public String name(int id) { return names[id]; }
+
+    public int category(int id) { return categories[id]; }
+
+    public String label(int category) { return labels.get(category); }
+
+    public double latitude(int id) { return latitudes[id]; }
+
+    public double longitude(int id) { return longitudes[id]; }
+
+    /*
+     *  Returns the ids of the pois within radius km of (latitude, longitude) in ascending order,
+     *  of the given category only unless it is -1. A radius <= 0 means any distance.
+     */
+    public int[] near(double latitude, double longitude, double radius, int category)
+    {
+        int top, bottom, west, east;
+        double dLatitude, dLongitude, cos;
+        Hits hits = new Hits();
+
+        //  All the pois of the category.
+        if (radius <= 0)
+            return (category < 0) ? all() : members[category].clone();
+
+        //  The bounding box of the circle, in cells.
+        dLatitude = Math.toDegrees(radius / EARTH);
+        cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(latitude) + dLatitude)));
+        dLongitude = (cos < 1e-9) ? 180 : Math.min(180, Math.toDegrees(radius / (EARTH * cos)));
+
+        bottom = row(Math.max(-90, latitude - dLatitude));
+        top = row(Math.min(90, latitude + dLatitude));
+        west = column(longitude - dLongitude);
+        east = column(longitude + dLongitude);
+
+        for(int r = bottom; r <= top; r++)
+        {
+            //  The box may cross the antimeridian, its columns then wrap around.
+            if (east - west + 1 >= COLUMNS)
+                visit(r, 0, COLUMNS - 1, hits, latitude, longitude, radius, category);
+            else if (west < 0)
+            {
+                visit(r, west + COLUMNS, COLUMNS - 1, hits, latitude, longitude, radius, category);
+                visit(r, 0, east, hits, latitude, longitude, radius, category);
+            }
+            else if (east >= COLUMNS)
+            {
+                visit(r, west, COLUMNS - 1, hits, latitude, longitude, radius, category);
+                visit(r, 0, east - COLUMNS, hits, latitude, longitude, radius, category);
+            }
+            else
+                visit(r, west, east, hits, latitude, longitude, radius, category);
+        }
+
+        return hits.sorted();
+    }
+
+    //  Adds the pois of cells [west, east] of row r that pass the filters.
+    private void visit(int r, int west, int east, Hits hits, double latitude, double longitude, double radius, int category)
+    {
+        int id;
+        long last = key(r, east);
+
+        for(int j = lower(key(r, west)); j < cells.length && cells[j] <= last; j++)
+        {
+            id = order[j];
+
+            if (category >= 0 && categories[id] != category)
+                continue;
+
+            if (distance(latitude, longitude, latitudes[id], longitudes[id]) <= radius)
+                hits.add(id);
+        }
+    }
+
+    //  The ids of all the pois.
+    private int[] all()
+    {
+        int[] result = order.clone();
+
+        Arrays.sort(result);
+        return result;
+    }
+
+    //  The haversine distance in km.
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double a, dLatitude = Math.toRadians(latitude2 - latitude1), dLongitude = Math.toRadians(longitude2 - longitude1);
+
+        a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+            + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+
+        return 2 * EARTH * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    //  Sorts the pois by cell and groups them by category.
+    private void build(int count)
+    {
+        int j = 0;
+        int[] sizes = new int[labels.size()];
+        long[] keys = new long[count];
+
+        //  key: cell in the high bits, id in the low bits.
+        for(int id = 0; id < size; id++)
+            if (categories[id] >= 0)
+            {
+                keys[j++] = (key(row(latitudes[id]), Math.floorMod(column(longitudes[id]), COLUMNS)) << 32) | id;
+                sizes[categories[id]]++;
+            }
+        Arrays.sort(keys);
+
+        cells = new long[count];
+        order = new int[count];
+        for(j = 0; j < count; j++)
+        {
+            cells[j] = keys[j] >>> 32;
+            order[j] = (int) keys[j];
+        }
+
+        members = new int[labels.size()][];
+        for(int c = 0; c < members.length; c++)
+            members[c] = new int[sizes[c]];
+
+        Arrays.fill(sizes, 0);
+        for(int id = 0; id < size; id++)
+            if (categories[id] >= 0)
+                members[categories[id]][sizes[categories[id]]++] = id;
+    }
+
+    //  The first position of cells with a cell >= key.
+    private int lower(long key)
+    {
+        int low = 0, high = cells.length, middle;
+
+        while (low < high)
+        {
+            middle = (low + high) >>> 1;
+            if (cells[middle] < key)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    private void grow(int capacity)
+    {
+        int length = latitudes.length;
+
+        latitudes = Arrays.copyOf(latitudes, capacity);
+        longitudes = Arrays.copyOf(longitudes, capacity);
+        categories = Arrays.copyOf(categories, capacity);
+        names = Arrays.copyOf(names, capacity);
+        Arrays.fill(categories, length, capacity, -1);
+    }
+
+    private static int row(double latitude) { return Math.min(ROWS - 1, (int) Math.floor((latitude + 90) / CELL)); }
+
+    //  May be out of [0, COLUMNS) for a longitude out of [-180, 180), the caller wraps it around.
+    private static int column(double longitude) { return (int) Math.floor((longitude + 180) / CELL); }
+
+    private static long key(int row, int column) { return (long) row * COLUMNS + column; }
+
+    /*****************************************************************************************/
+
+    //  The pois found by a query.
+    private static class Hits
+    {
+        int count;
+        int[] ids = new int[16];
+
+        void add(int id)
+        {
+            if (count == ids.length)
+                ids = Arrays.copyOf(ids, 2 * count);
+            ids[count++] = id;
+        }
+
+        int[] sorted()
+        {
+            int[] result = Arrays.copyOf(ids, count);
+
+            Arrays.sort(result);
+            return result;
+        }
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  The size of a cell in degrees, about 11 km of latitude.
+    private static final double CELL = 0.1;
+    private static final int ROWS = (int) Math.ceil(180 / CELL) + 1;
+    private static final int COLUMNS = (int) Math.ceil(360 / CELL);
+    //  The mean radius of the earth in km.
+    private static final double EARTH = 6371.0088;
+}
@@ -1,6 +1,8 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.SocketChannel;
 import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 
 public class Client
@@ -20,28 +22,28 @@ public class Client
         /*
          *  u: user id.
          *  k: number of POIs.
+         *  count: number of POIs received.
+         *  tag: identifies each request, it is returned with the reply.
+         *  same: 1 for POIs of the category of poi only.
          */
-        int u, k;
+        int u, k, count, same, tag = 0;
+        //  Only POIs within radius km of poi, 0 for any distance.
+        double radius;
         //  Recommendations.
-        Poi[] recs;
+        int[] recs;
         Scanner sc = new Scanner(System.in);
-        Socket request = null;
-        ObjectInputStream in = null;
-        ObjectOutputStream out = null;
+        //  The connection is kept open for all the requests.
+        Link request = null;
 
         //  Dummy data.
-        poi = new Poi(13, "Apostolos Nikolaidis Stadium", 37.987228, 23.754152, "Sports Venue");
+        poi = new Poi(13, "Apostolos Nikolaidis Stadium", 23.754152, 37.987228, "Sports Venue");
 
         try
         {
             //  Connecting to Master.
-            request = new Socket(IP_ADDRESS, PORT);
+            request = new Link(SocketChannel.open(new InetSocketAddress(IP_ADDRESS, PORT)));
             System.out.println("Connected to Server.\n");
 
-            //  Initializing streams.
-            out = new ObjectOutputStream(request.getOutputStream());
-            in = new ObjectInputStream(request.getInputStream());
-
             System.out.println(EXIT);
 
             //  Reading input.
@@ -54,64 +56,81 @@ public class Client
 
                     //  Check exit case.
                     if (u == -1)
-                    {
-                        in.close();
-                        out.close();
-                        request.close();
-                        System.exit(0);
-                    }
+                        break;
 
                     System.out.print(POI_PROMPT);
                     k = sc.nextInt();
 
-                    if (u < 0 || k <= 0)
+                    System.out.print(RADIUS_PROMPT);
+                    radius = sc.nextDouble();
+
+                    System.out.print(CATEGORY_PROMPT);
+                    same = sc.nextInt();
+
+                    if (u < 0 || k <= 0 || radius < 0 || (same != 0 && same != 1))
+                    {
                         System.out.println(INVALID_INPUT);
-                    else
-                        break;
+                        continue;
+                    }
                 }   //  Input can't be parsed.
                 catch(InputMismatchException imExc)
                 {
                     System.out.println(INVALID_INPUT);
                     //  Emptying buffer.
                     sc.nextLine();
+                    continue;
+                }
+                catch(NoSuchElementException nseExc)    //  End of input.
+                {
+                    break;
                 }
-            }
 
-            //  Send data to Master.
-            out.writeInt(u);
-            out.writeObject(poi);
-            out.writeInt(k);
-            out.flush();
+                //  Send data to Master.
+                request.begin(Link.REQUEST);
+                request.putInt(++tag);
+                request.putInt(u);
+                request.putInt(k);
+                request.putInt(poi.getId());
+                request.putInt((same == 1) ? RequestServer.SAME_CATEGORY : 0);
+                request.putDouble(radius);
+                request.putDouble(poi.getLatitude());
+                request.putDouble(poi.getLongitude());
+                request.send();
+
+                //  Receive recommendations, the only request in flight is the one just sent.
+                if (request.receive() != Link.REPLY || request.getInt() != tag)
+                    throw new IOException("Unexpected reply.");
+
+                count = request.getInt();
+
+                if (count < 0)      //  u or k are too big, or there's no catalogue to filter by.
+                {
+                    System.out.println(OUT_OF_BOUNDS);
+                    continue;
+                }
 
-            //  Receive recommendations.
-            recs = (Poi[]) in.readObject();
+                recs = new int[count];
+                request.getInts(recs, 0, count);
 
-            if (recs == null)   //  u or k are too big.
-                System.out.println(OUT_OF_BOUNDS);
-            else
-            {   //  Print recommendations.
+                //  Print recommendations.
                 System.out.print(RESULTS);
                 for(int i = 0; i < recs.length; i++)
-                    System.out.print( " | " + recs[i].getId());
+                    System.out.print( " | " + recs[i]);
+                System.out.println("\n");
             }
         }
         catch(IOException ioExc)
         {
             ioExc.printStackTrace();
         }
-        catch(ClassNotFoundException cnfExc)
-        {
-            cnfExc.printStackTrace();
-        }
         finally
         {
             try
             {
-                //  Closing streams.
+                //  Closing the connection.
                 sc.close();
-                in.close();
-                out.close();
-                request.close();
+                if (request != null)
+                    request.close();
             }
             catch(IOException ioExc)
             {
@@ -129,4 +148,6 @@ public class Client
     private static final String INVALID_INPUT = "\nInvalid input\n";
     private static final String USR_PROMPT = "Enter user id: ";
     private static final String POI_PROMPT = "Enter number of POIs: ";
+    private static final String RADIUS_PROMPT = "Enter distance in km (0 for any): ";
+    private static final String CATEGORY_PROMPT = "Same category only (1 = yes, 0 = no): ";
 }
\ No newline at end of file
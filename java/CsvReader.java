@@ -0,0 +1,395 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ *  Reads a file of "row, col, rating" lines into a SparseMatrix.
+ *  The file is memory-mapped and split at line boundaries into chunks, which are parsed in parallel
+ *  straight from the mapped bytes into primitive arrays. No Strings are created.
+ *  A repeated (row, col) entry replaces the earlier one.
+ *  Ratings can't be negative: the confidence c = 1 + α·rating of an entry must be at least 1, or the system of its
+ *  row may not be positive definite (see Kernels.solveRow). A negative rating is reported as a malformed line.
+ */
+public final class CsvReader
+{
+    private CsvReader() { }
+
+    /*
+     *  Reads the file.
+     *  rows, cols: the dimensions of the matrix, 0 to infer them from the largest ids.
+     */
+    public static SparseMatrix read(String path, int rows, int cols) throws IOException
+    {
+        int n;
+        long size;
+        long[] bounds;
+        Chunk[] chunks;
+        ArrayList<Parser> parsers = new ArrayList<Parser>();
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+
+        try
+        {
+            size = channel.size();
+            //  Enough chunks to keep every core busy, each one small enough to be mapped.
+            n = (int) Math.max(4L * Runtime.getRuntime().availableProcessors(), size / MAX_CHUNK + 1);
+            n = (int) Math.max(1, Math.min(n, size / MIN_CHUNK));
+
+            //  Each chunk starts at the beginning of a line.
+            bounds = new long[n + 1];
+            bounds[n] = size;
+            for(int i = 1; i < n; i++)
+                bounds[i] = Math.max(bounds[i - 1], lineStart(channel, size * i / n));
+
+            chunks = new Chunk[n];
+            for(int i = 0; i < n; i++)
+            {
+                chunks[i] = new Chunk();
+                parsers.add(new Parser(channel, bounds[i], bounds[i + 1], chunks[i]));
+            }
+
+            ForkJoinTask.invokeAll(parsers);
+        }
+        catch(UncheckedIOException uioExc)
+        {
+            throw uioExc.getCause();
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        return compress(chunks, rows, cols);
+    }
+
+    //  Returns the position of the first line starting at or after position.
+    private static long lineStart(FileChannel channel, long position) throws IOException
+    {
+        int read;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        if (position == 0)
+            return 0;
+
+        //  The line starts after the first '\n' at or after position - 1.
+        position--;
+        while ((read = channel.read(buffer, position)) > 0)
+        {
+            for(int i = 0; i < read; i++)
+                if (buffer.get(i) == '\n')
+                    return position + i + 1;
+
+            position += read;
+            buffer.clear();
+        }
+
+        return channel.size();
+    }
+
+    //  Builds the CSR arrays from the parsed chunks.
+    private static SparseMatrix compress(Chunk[] chunks, int rows, int cols)
+    {
+        int maxRow = -1, maxCol = -1, size = 0, row, write, start;
+        int[] offsets, next, indices;
+        float[] values, copy;
+        long[] keys = new long[0];
+
+        for(Chunk chunk : chunks)
+        {
+            maxRow = Math.max(maxRow, chunk.maxRow);
+            maxCol = Math.max(maxCol, chunk.maxCol);
+            size += chunk.size;
+        }
+
+        //  The arrays of the offsets have one more entry than the rows or columns.
+        if (maxRow >= MAX_ID || maxCol >= MAX_ID)
+            throw new IllegalArgumentException("Entry id too large.");
+
+        if ((rows > 0 && maxRow >= rows) || (cols > 0 && maxCol >= cols))
+            throw new IllegalArgumentException("Entry out of the given dimensions.");
+
+        rows = (rows > 0) ? rows : maxRow + 1;
+        cols = (cols > 0) ? cols : maxCol + 1;
+
+        //  Counting sort by row, keeping the order of the file within each row.
+        offsets = new int[rows + 1];
+        next = new int[rows];
+        indices = new int[size];
+        values = new float[size];
+
+        for(Chunk chunk : chunks)
+            for(int j = 0; j < chunk.size; j++)
+                offsets[chunk.rows[j] + 1]++;
+
+        for(int i = 0; i < rows; i++)
+        {
+            offsets[i + 1] += offsets[i];
+            next[i] = offsets[i];
+        }
+
+        for(Chunk chunk : chunks)
+            for(int j = 0; j < chunk.size; j++)
+            {
+                row = chunk.rows[j];
+                indices[next[row]] = chunk.cols[j];
+                values[next[row]] = chunk.values[j];
+                next[row]++;
+            }
+
+        /*
+         *  Sorting each row by column and dropping repeated entries, the last one is kept.
+         *  The entries are moved towards the start, so write never passes the row being read.
+         */
+        write = 0;
+        for(int i = 0; i < rows; i++)
+        {
+            start = offsets[i];
+            offsets[i] = write;
+
+            if (sorted(indices, start, offsets[i + 1]))
+            {
+                for(int j = start; j < offsets[i + 1]; j++, write++)
+                {
+                    indices[write] = indices[j];
+                    values[write] = values[j];
+                }
+                continue;
+            }
+
+            //  key: column in the high bits, position in the row in the low bits.
+            if (keys.length < offsets[i + 1] - start)
+                keys = new long[offsets[i + 1] - start];
+            for(int j = start; j < offsets[i + 1]; j++)
+                keys[j - start] = ((long) indices[j] << 32) | (j - start);
+            Arrays.sort(keys, 0, offsets[i + 1] - start);
+
+            copy = Arrays.copyOfRange(values, start, offsets[i + 1]);
+            for(int j = 0; j < offsets[i + 1] - start; j++)
+            {
+                if (j + 1 < offsets[i + 1] - start && (keys[j + 1] >>> 32) == (keys[j] >>> 32))
+                    continue;   //  A later entry of the same column follows.
+
+                indices[write] = (int) (keys[j] >>> 32);
+                values[write] = copy[(int) keys[j]];
+                write++;
+            }
+        }
+        offsets[rows] = write;
+
+        return new SparseMatrix(rows, cols, offsets, Arrays.copyOf(indices, write), Arrays.copyOf(values, write));
+    }
+
+    //  Whether indices[start, end) is strictly increasing.
+    private static boolean sorted(int[] indices, int start, int end)
+    {
+        for(int j = start + 1; j < end; j++)
+            if (indices[j] <= indices[j - 1])
+                return false;
+
+        return true;
+    }
+
+    /*****************************************************************************************/
+
+    //  The entries parsed from a chunk of the file.
+    private static class Chunk
+    {
+        int size, maxRow = -1, maxCol = -1;
+        int[] rows = new int[1024], cols = new int[1024];
+        float[] values = new float[1024];
+
+        void add(int row, int col, float value)
+        {
+            if (size == rows.length)
+            {
+                rows = Arrays.copyOf(rows, 2 * size);
+                cols = Arrays.copyOf(cols, 2 * size);
+                values = Arrays.copyOf(values, 2 * size);
+            }
+
+            rows[size] = row;
+            cols[size] = col;
+            values[size] = value;
+            maxRow = Math.max(maxRow, row);
+            maxCol = Math.max(maxCol, col);
+            size++;
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Parses the lines in [start, end) of the file.
+    private static class Parser extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private long start, end;
+        private Chunk chunk;
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+        private int i;      //  The position in buffer.
+
+        Parser(FileChannel channel, long start, long end, Chunk chunk)
+        {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.chunk = chunk;
+        }
+
+        protected void compute()
+        {
+            int row, col;
+            float value;
+
+            try
+            {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            }
+            catch(IOException ioExc)
+            {
+                throw new UncheckedIOException(ioExc);
+            }
+
+            i = 0;
+            while (i < buffer.limit())
+            {
+                skip();
+
+                if (i == buffer.limit() || buffer.get(i) == '\n')   //  Empty line.
+                {
+                    i++;
+                    continue;
+                }
+
+                row = integer();
+                separator();
+                col = integer();
+                separator();
+                value = decimal();
+                skip();
+
+                if (i < buffer.limit() && buffer.get(i++) != '\n')
+                    throw error();
+
+                chunk.add(row, col, value);
+            }
+        }
+
+        //  Skips spaces, tabs and '\r'.
+        private void skip()
+        {
+            byte b;
+
+            while (i < buffer.limit() && ((b = buffer.get(i)) == ' ' || b == '\t' || b == '\r'))
+                i++;
+        }
+
+        //  Skips a ',' and the blanks around it.
+        private void separator()
+        {
+            skip();
+            if (i == buffer.limit() || buffer.get(i++) != ',')
+                throw error();
+            skip();
+        }
+
+        //  A non-negative int, an id too large for one is malformed.
+        private int integer()
+        {
+            int value = 0, first = i;
+            byte b;
+
+            while (i < buffer.limit() && (b = buffer.get(i)) >= '0' && b <= '9')
+            {
+                if (value > (Integer.MAX_VALUE - (b - '0')) / 10)
+                    throw error();
+
+                value = 10 * value + (b - '0');
+                i++;
+            }
+
+            if (i == first)
+                throw error();
+
+            return value;
+        }
+
+        //  A non-negative decimal number with an optional '+', fraction and exponent, as Double.parseDouble reads it.
+        private float decimal()
+        {
+            byte b;
+            double value = 0, scale = 1;
+            int first, exponent = 0;
+            boolean negative = false;
+
+            if (i < buffer.limit() && buffer.get(i) == '+')
+                i++;
+
+            first = i;
+            while (i < buffer.limit() && (b = buffer.get(i)) >= '0' && b <= '9')
+            {
+                value = 10 * value + (b - '0');
+                i++;
+            }
+
+            if (i < buffer.limit() && buffer.get(i) == '.')
+                for(i++; i < buffer.limit() && (b = buffer.get(i)) >= '0' && b <= '9'; i++)
+                {
+                    scale /= 10;
+                    value += scale * (b - '0');
+                }
+
+            if (i == first || (i == first + 1 && buffer.get(first) == '.'))
+                throw error();
+
+            if (i < buffer.limit() && ((b = buffer.get(i)) == 'e' || b == 'E'))
+            {
+                i++;
+                if (i < buffer.limit() && ((b = buffer.get(i)) == '+' || b == '-'))
+                {
+                    negative = (b == '-');
+                    i++;
+                }
+
+                first = i;
+                while (i < buffer.limit() && (b = buffer.get(i)) >= '0' && b <= '9')
+                {
+                    exponent = Math.min(10 * exponent + (b - '0'), MAX_EXPONENT);
+                    i++;
+                }
+
+                if (i == first)
+                    throw error();
+
+                //  0 × ∞ would be NaN.
+                if (value != 0)
+                    value *= Math.pow(10, negative ? -exponent : exponent);
+            }
+
+            //  Too large for a float, or NaN if the digits alone overflowed and the exponent is very negative.
+            if (Float.isInfinite((float) value) || Double.isNaN(value))
+                throw error();
+
+            return (float) value;
+        }
+
+        private IllegalArgumentException error() { return new IllegalArgumentException("Malformed line near byte " + (start + i) + "."); }
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  Chunk sizes in bytes.
+    private static final long MIN_CHUNK = 1 << 16;
+    private static final long MAX_CHUNK = 1 << 30;
+    //  The ids must be below it, the largest array size that can be allocated is a bit below Integer.MAX_VALUE.
+    private static final int MAX_ID = Integer.MAX_VALUE - 8;
+    //  Beyond any exponent of a finite double, a larger one is clamped to it while reading.
+    private static final int MAX_EXPONENT = 1000;
+}
@@ -0,0 +1,23 @@
+/*
+ *  A factor matrix (X or Y): rows × k values stored in a flat array in row-major order.
+ *  Row i starts at data[i*k].
+ */
+public class Factors
+{
+    public final int rows, k;
+    public final double[] data;
+
+    //  Constructor.
+    public Factors(int rows, int k) { this(rows, k, new double[rows * k]); }
+
+    //  Constructor, using the given array as it is.
+    public Factors(int rows, int k, double[] data)
+    {
+        this.rows = rows;
+        this.k = k;
+        this.data = data;
+    }
+
+    //  The offset of row i in data.
+    public int row(int i) { return i * k; }
+}
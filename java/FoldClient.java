@@ -0,0 +1,135 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+
+/*
+ *  Submits new interactions of a user, or of a new poi, to be folded into the served model,
+ *  then asks for the recommendations of the user with the updated row.
+ *  Usage: java FoldClient user|poi id id:rating [id:rating ...]
+ *  The ids of the interactions are pois for a user and users for a poi.
+ */
+public class FoldClient
+{
+    /********************* Connection Settings ***********************/
+
+            private static final int PORT = 4322;
+            private static final String IP_ADDRESS = "localhost";
+
+    /*****************************************************************/
+
+    //  Main Method
+    public static void main(String[] args)
+    {
+        /*
+         *  id: the user or poi folded in.
+         *  count: number of POIs received.
+         */
+        int id, count;
+        boolean poi;
+        String[] pair;
+        long start;
+        Link request = null;
+
+        if (args.length < 3 || !(args[0].equals("user") || args[0].equals("poi")))
+        {
+            System.err.println(USAGE);
+            System.exit(0);
+        }
+
+        try
+        {
+            poi = args[0].equals("poi");
+            id = Integer.parseInt(args[1]);
+
+            //  Connecting to Master.
+            request = new Link(SocketChannel.open(new InetSocketAddress(IP_ADDRESS, PORT)));
+            start = System.nanoTime();
+
+            //  Sending the interactions.
+            request.begin(Link.FOLD);
+            request.putInt(TAG);
+            request.putInt(poi ? RequestServer.FOLD_POI : 0);
+            request.putInt(id);
+            request.putInt(args.length - 2);
+            for(int i = 2; i < args.length; i++)
+            {
+                pair = args[i].split(":");
+                if (pair.length != 2)
+                    throw new NumberFormatException(args[i]);
+
+                request.putInt(Integer.parseInt(pair[0].trim()));
+                request.putFloat(Float.parseFloat(pair[1].trim()));
+            }
+            request.send();
+
+            if (request.receive() != Link.REPLY || request.getInt() != TAG)
+                throw new IOException("Unexpected reply.");
+
+            if (request.getInt() < 0)
+            {
+                System.out.println(NOT_FOLDED);
+                return;
+            }
+
+            System.out.printf(FOLDED, args[0], request.getInt(), (System.nanoTime() - start) / 1e6);
+
+            if (poi)
+                return;
+
+            //  The recommendations of the user.
+            request.begin(Link.REQUEST);
+            request.putInt(TAG);
+            request.putInt(id);
+            request.putInt(K);
+            request.putInt(-1);
+            request.putInt(0);
+            request.putDouble(0);
+            request.putDouble(0);
+            request.putDouble(0);
+            request.send();
+
+            if (request.receive() != Link.REPLY || request.getInt() != TAG)
+                throw new IOException("Unexpected reply.");
+
+            count = request.getInt();
+
+            System.out.print(RESULTS);
+            for(int i = 0; i < count; i++)
+                System.out.print(" | " + request.getInt());
+            System.out.println();
+        }
+        catch(NumberFormatException nfExc)
+        {
+            System.err.println(USAGE);
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        finally
+        {
+            try
+            {
+                //  Closing the connection.
+                if (request != null)
+                    request.close();
+            }
+            catch(IOException ioExc)
+            {
+                ioExc.printStackTrace();
+            }
+        }
+    }
+
+    //  The tag of the requests, one is sent at a time.
+    private static final int TAG = 1;
+    //  The number of POIs recommended after a user is folded in.
+    private static final int K = 10;
+
+    /************************* Output Messages ***************************/
+
+    private static final String USAGE = "Usage: java FoldClient user|poi id id:rating [id:rating ...]";
+    private static final String NOT_FOLDED = "The interactions can't be folded in.";
+    private static final String FOLDED = "Folded %s %d in %.2f ms.\n";
+    private static final String RESULTS = "Recommended POIs: ";
+}
@@ -0,0 +1,283 @@
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ *  An inverted file (IVF) index over the rows of Y, used to find the pois with the highest score xu·yi
+ *  without scoring all of them. It's immutable and built once for every published model.
+ *
+ *  Maximum inner product search is reduced to nearest neighbour search: every row is augmented with
+ *  sqrt(M² - |yi|²), M being the largest norm, so all rows have norm M and for a query (xu, 0) the row with
+ *  the highest inner product is also the nearest one. The augmented rows are clustered with k-means into
+ *  nlist lists, training on a sample of SAMPLE rows per list. A query scores the centroids, then scans the rows
+ *  of the nprobe lists with the highest scores exactly. More lists probed means higher recall and slower queries.
+ *  The rows of each list are copied contiguously, so a list is scanned with a single gemv.
+ */
+public class Index
+{
+    public final int nlist, nprobe;
+    private final int k, longest;       //  longest: the number of rows of the longest list.
+    private final double[] centroids;   //  nlist × k, the centroids without the augmented coordinate.
+    private final int[] offsets;        //  The rows of list l are in [offsets[l], offsets[l + 1]).
+    private final int[] ids;            //  The poi id of each row.
+    private final double[] rows;        //  The rows of Y ordered by list.
+
+    /*
+     *  Builds the index.
+     *  nlist: the number of lists, 0 for about sqrt(rows).
+     *  nprobe: the number of lists scanned for each query.
+     */
+    public Index(Model model, int nlist, int nprobe)
+    {
+        int longest = 0, n = model.pois();
+        int[] assignment = new int[n], next;
+        double[] augmented;
+        DoubleBuffer y = model.y();
+
+        k = model.k;
+        nlist = (nlist > 0) ? nlist : (int) Math.ceil(Math.sqrt(n));
+        this.nlist = Math.max(1, Math.min(nlist, n));
+        this.nprobe = Math.max(1, Math.min(nprobe, this.nlist));
+
+        augmented = augment(y, n, k);
+        centroids = new double[this.nlist * k];
+        cluster(augmented, n, assignment);
+
+        //  Grouping the rows by list.
+        offsets = new int[this.nlist + 1];
+        next = new int[this.nlist];
+        ids = new int[n];
+        rows = new double[n * k];
+
+        for(int i = 0; i < n; i++)
+            offsets[assignment[i] + 1]++;
+
+        for(int l = 0; l < this.nlist; l++)
+        {
+            offsets[l + 1] += offsets[l];
+            next[l] = offsets[l];
+        }
+
+        for(int i = 0; i < n; i++)
+        {
+            ids[next[assignment[i]]] = i;
+            y.get(i * k, rows, next[assignment[i]] * k, k);
+            next[assignment[i]]++;
+        }
+
+        for(int l = 0; l < this.nlist; l++)
+            longest = Math.max(longest, offsets[l + 1] - offsets[l]);
+        this.longest = longest;
+    }
+
+    //  An index sharing the lists of index, probing nprobe of them.
+    private Index(Index index, int nprobe)
+    {
+        k = index.k;
+        nlist = index.nlist;
+        this.nprobe = Math.max(1, Math.min(nprobe, nlist));
+        longest = index.longest;
+        centroids = index.centroids;
+        offsets = index.offsets;
+        ids = index.ids;
+        rows = index.rows;
+    }
+
+    //  Returns the same index probing nprobe lists, without building it again.
+    public Index probing(int nprobe) { return new Index(this, nprobe); }
+
+    /*
+     *  Returns the ids of up to count pois with the highest score for the query q = q[qOff, qOff + k),
+     *  excluding poi exclude, in descending order of score. Fewer are returned if the lists probed don't hold enough.
+     */
+    public int[] search(double[] q, int qOff, int count, int exclude)
+    {
+        TopK lists = new TopK(nprobe), best = new TopK(count);
+        double[] scores = new double[Math.max(nlist, longest)];
+        int[] probed;
+
+        //  Choosing the lists.
+        Kernels.gemv(centroids, 0, nlist, k, q, qOff, scores);
+        for(int l = 0; l < nlist; l++)
+            lists.offer(l, scores[l]);
+        probed = lists.sorted();
+
+        //  Scanning their rows.
+        for(int l : probed)
+        {
+            Kernels.gemv(rows, offsets[l], offsets[l + 1], k, q, qOff, scores);
+
+            for(int j = offsets[l]; j < offsets[l + 1]; j++)
+                if (ids[j] != exclude)
+                    best.offer(ids[j], scores[j - offsets[l]]);
+        }
+
+        return best.sorted();
+    }
+
+    //  Returns the n rows of y with the extra coordinate sqrt(M² - |yi|²), as an n × (k + 1) matrix.
+    private static double[] augment(DoubleBuffer y, int n, int k)
+    {
+        int w = k + 1;
+        double max = 0;
+        double[] norms = new double[n], augmented = new double[n * w];
+
+        for(int i = 0; i < n; i++)
+        {
+            y.get(i * k, augmented, i * w, k);
+            norms[i] = Kernels.dot(augmented, i * w, augmented, i * w, k);
+            max = Math.max(max, norms[i]);
+        }
+
+        for(int i = 0; i < n; i++)
+            augmented[i * w + k] = Math.sqrt(max - norms[i]);
+
+        return augmented;
+    }
+
+    /*
+     *  k-means on a random sample of the augmented rows. The centroids start at distinct random rows and an empty
+     *  list gets a random row as its centroid again. Fills in the centroids and assigns all the rows to their lists.
+     */
+    private void cluster(double[] augmented, int n, int[] assignment)
+    {
+        int w = k + 1, changed = 1, j, tmp, m = (int) Math.min(n, (long) SAMPLE * nlist);
+        int[] sizes = new int[nlist], order = new int[n], labels = new int[m];
+        double[] means = new double[nlist * w], sample = new double[m * w];
+        Random random = new Random(SEED);
+
+        //  A random permutation of the rows, its first m rows are the sample and its first nlist rows the initial centroids.
+        for(int i = 0; i < n; i++)
+            order[i] = i;
+        for(int i = n - 1; i > 0; i--)
+        {
+            j = random.nextInt(i + 1);
+            tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+        for(int i = 0; i < m; i++)
+            System.arraycopy(augmented, order[i] * w, sample, i * w, w);
+        System.arraycopy(sample, 0, means, 0, nlist * w);
+
+        Arrays.fill(labels, -1);
+
+        for(int iteration = 0; iteration < ITERATIONS && changed > 0; iteration++)
+        {
+            changed = assign(sample, m, means, labels);
+
+            //  Moving each centroid to the mean of its rows.
+            Arrays.fill(means, 0);
+            Arrays.fill(sizes, 0);
+            for(int i = 0; i < m; i++)
+            {
+                Kernels.axpy(1, sample, i * w, means, labels[i] * w, w);
+                sizes[labels[i]]++;
+            }
+
+            for(int l = 0; l < nlist; l++)
+                if (sizes[l] == 0)
+                    System.arraycopy(sample, random.nextInt(m) * w, means, l * w, w);
+                else
+                    for(int c = 0; c < w; c++)
+                        means[l * w + c] /= sizes[l];
+        }
+
+        //  The lists of all the rows.
+        Arrays.fill(assignment, -1);
+        assign(augmented, n, means, assignment);
+
+        //  The queries have 0 as their augmented coordinate, so it's dropped.
+        for(int l = 0; l < nlist; l++)
+            System.arraycopy(means, l * w, centroids, l * k, k);
+    }
+
+    //  Assigns every row to its nearest centroid, in parallel. Returns the number of rows that changed list.
+    private int assign(double[] augmented, int n, double[] means, int[] assignment)
+    {
+        int w = k + 1, changed = 0;
+        double[] norms = new double[nlist];
+        ArrayList<Assign> tasks = new ArrayList<Assign>();
+
+        for(int l = 0; l < nlist; l++)
+            norms[l] = Kernels.dot(means, l * w, means, l * w, w);
+
+        for(int start = 0; start < n; start += GRAIN)
+            tasks.add(new Assign(augmented, means, norms, assignment, start, Math.min(start + GRAIN, n)));
+
+        ForkJoinTask.invokeAll(tasks);
+
+        for(Assign task : tasks)
+            changed += task.changed;
+
+        return changed;
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  Assigns rows [start, end) to their nearest centroids.
+     *  |yi - c|² = |yi|² + |c|² - 2·yi·c, and |yi|² is the same for all the centroids.
+     */
+    private class Assign extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int start, end, changed;
+        private int[] assignment;
+        private double[] augmented, means, norms;
+
+        Assign(double[] augmented, double[] means, double[] norms, int[] assignment, int start, int end)
+        {
+            this.augmented = augmented;
+            this.means = means;
+            this.norms = norms;
+            this.assignment = assignment;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            int w = k + 1, nearest;
+            double distance, min;
+            double[] products = new double[nlist];
+
+            for(int i = start; i < end; i++)
+            {
+                Kernels.gemv(means, 0, nlist, w, augmented, i * w, products);
+
+                nearest = 0;
+                min = Double.POSITIVE_INFINITY;
+                for(int l = 0; l < nlist; l++)
+                {
+                    distance = norms[l] - 2 * products[l];
+                    if (distance < min)
+                    {
+                        min = distance;
+                        nearest = l;
+                    }
+                }
+
+                if (assignment[i] != nearest)
+                {
+                    assignment[i] = nearest;
+                    changed++;
+                }
+            }
+        }
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  k-means iterations at most.
+    private static final int ITERATIONS = 20;
+    //  Rows sampled per list to train k-means.
+    private static final int SAMPLE = 64;
+    //  Rows assigned by a single task.
+    private static final int GRAIN = 256;
+    private static final long SEED = 42;
+}
@@ -0,0 +1,92 @@
+import java.util.Random;
+
+/*
+ *  Measures the recall and latency of the IVF index against the exact scan, on random factors
+ *  with some cluster structure, for several numbers of lists probed.
+ *  Usage: java IndexBenchmark [pois] [users] [k]
+ */
+public class IndexBenchmark
+{
+    /************************ Settings **************************/
+
+            //  Queries measured, the first WARMUP are not.
+            private static final int QUERIES = 2000;
+            private static final int WARMUP = 500;
+            //  Pois recommended per query.
+            private static final int TOP = 10;
+            //  The clusters the random factors are drawn around.
+            private static final int CLUSTERS = 256;
+            private static final int[] PROBES = {1, 4, 8, 16, 32, 64};
+
+    /************************************************************/
+
+    //  Main method
+    public static void main(String[] args)
+    {
+        int pois = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int users = (args.length > 1) ? Integer.parseInt(args[1]) : 10000;
+        int k = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        long start;
+        Random random = new Random(7);
+        Factors x = random(users, k, random), y = random(pois, k, random);
+        Model exact = new Model(0, x, y, null), approximate;
+        Index index;
+
+        System.out.printf("%d pois, %d users, k = %d\n", pois, users, k);
+        System.out.printf("%-8s %-8s %10s %14s\n", "nlist", "nprobe", "recall", "us/query");
+        System.out.printf("%-8s %-8s %10.3f %14.1f\n", "-", "exact", 1.0, latency(exact));
+
+        start = System.nanoTime();
+        index = new Index(exact, 0, 1);
+        System.out.printf("Built %d lists in %.0f ms.\n", index.nlist, (System.nanoTime() - start) / 1e6);
+
+        for(int nprobe : PROBES)
+        {
+            if (nprobe > index.nlist)
+                break;
+
+            approximate = new Model(0, x, y, index.probing(nprobe));
+            System.out.printf("%-8d %-8d %10.3f %14.1f\n", index.nlist, nprobe, approximate.recall(QUERIES, TOP, 1), latency(approximate));
+        }
+    }
+
+    //  Returns the mean time of a request in μs.
+    private static double latency(Model model)
+    {
+        long start = 0, sum = 0;
+        Random random = new Random(3);
+
+        for(int q = 0; q < QUERIES; q++)
+        {
+            if (q == WARMUP)
+                start = System.nanoTime();
+
+            sum += model.recommend(random.nextInt(model.users()), TOP, -1)[0];
+        }
+
+        if (sum == 42)      //  Keeps the results alive.
+            System.out.print("");
+
+        return (System.nanoTime() - start) / 1e3 / (QUERIES - WARMUP);
+    }
+
+    //  Rows drawn around CLUSTERS random centres.
+    private static Factors random(int rows, int k, Random random)
+    {
+        Factors m = new Factors(rows, k);
+        double[] centres = new double[CLUSTERS * k];
+        int c;
+
+        for(int i = 0; i < centres.length; i++)
+            centres[i] = random.nextGaussian();
+
+        for(int i = 0; i < rows; i++)
+        {
+            c = random.nextInt(CLUSTERS);
+            for(int l = 0; l < k; l++)
+                m.data[i * k + l] = centres[c * k + l] + 0.5 * random.nextGaussian();
+        }
+
+        return m;
+    }
+}
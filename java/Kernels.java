@@ -0,0 +1,330 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/*
+ *  Linear algebra kernels used in the hot paths of the calculation.
+ *  All matrices are flat double[] arrays in row-major order and every kernel works in place,
+ *  so nothing is allocated while training.
+ *  Symmetric k×k matrices are kept in their lower triangle: a[i*k + j] with j <= i.
+ *  The kernels used for serving also read from DoubleBuffers, so a model can be served from a mapped file.
+ */
+public final class Kernels
+{
+    private Kernels() { }
+
+    //  Returns the dot product of a[aOff, aOff + k) and b[bOff, bOff + k).
+    public static double dot(double[] a, int aOff, double[] b, int bOff, int k)
+    {
+        double sum = 0;
+
+        for(int l = 0; l < k; l++)
+            sum += a[aOff + l] * b[bOff + l];
+
+        return sum;
+    }
+
+    //  y[yOff, yOff + k) += alpha·x[xOff, xOff + k)
+    public static void axpy(double alpha, double[] x, int xOff, double[] y, int yOff, int k)
+    {
+        for(int l = 0; l < k; l++)
+            y[yOff + l] += alpha * x[xOff + l];
+    }
+
+    /*
+     *  Matrix-vector product of rows [start, end) of m (a rows × k matrix) with v = v[vOff, vOff + k):
+     *  out[i - start] = mᵢ·v
+     */
+    public static void gemv(double[] m, int start, int end, int k, double[] v, int vOff, double[] out)
+    {
+        gemv(m, start, end, k, v, vOff, out, 0);
+    }
+
+    /*
+     *  As above, writing to out[outOff + i - start].
+     *  Four rows are processed at a time, so each value of v is loaded once per block.
+     */
+    public static void gemv(double[] m, int start, int end, int k, double[] v, int vOff, double[] out, int outOff)
+    {
+        int i, r0, r1, r2, r3, o;
+        double s0, s1, s2, s3, vl;
+
+        for(i = start; i + 4 <= end; i += 4)
+        {
+            r0 = i * k;
+            r1 = r0 + k;
+            r2 = r1 + k;
+            r3 = r2 + k;
+            s0 = s1 = s2 = s3 = 0;
+
+            for(int l = 0; l < k; l++)
+            {
+                vl = v[vOff + l];
+                s0 += m[r0 + l] * vl;
+                s1 += m[r1 + l] * vl;
+                s2 += m[r2 + l] * vl;
+                s3 += m[r3 + l] * vl;
+            }
+
+            o = outOff + i - start;
+            out[o] = s0;
+            out[o + 1] = s1;
+            out[o + 2] = s2;
+            out[o + 3] = s3;
+        }
+
+        for(; i < end; i++)
+            out[outOff + i - start] = dot(m, i * k, v, vOff, k);
+    }
+
+    /*
+     *  Matrix product of the first n rows of a with rows [start, end) of b, both with k columns:
+     *  c[i*ldc + j - start] = aᵢ·bⱼ
+     *  Rows [start, end) of b should fit in the cache, they are read once for every row of a.
+     */
+    public static void gemm(double[] a, int n, double[] b, int start, int end, int k, double[] c, int ldc)
+    {
+        for(int i = 0; i < n; i++)
+            gemv(b, start, end, k, a, i * k, c, i * ldc);
+    }
+
+    //  As dot() above, with a read from a buffer, e.g. a memory-mapped file.
+    public static double dot(DoubleBuffer a, int aOff, double[] b, int bOff, int k)
+    {
+        double sum = 0;
+
+        for(int l = 0; l < k; l++)
+            sum += a.get(aOff + l) * b[bOff + l];
+
+        return sum;
+    }
+
+    //  As gemv() above, with m read from a buffer, e.g. a memory-mapped file.
+    public static void gemv(DoubleBuffer m, int start, int end, int k, double[] v, int vOff, double[] out, int outOff)
+    {
+        int i, r0, r1, r2, r3, o;
+        double s0, s1, s2, s3, vl;
+
+        for(i = start; i + 4 <= end; i += 4)
+        {
+            r0 = i * k;
+            r1 = r0 + k;
+            r2 = r1 + k;
+            r3 = r2 + k;
+            s0 = s1 = s2 = s3 = 0;
+
+            for(int l = 0; l < k; l++)
+            {
+                vl = v[vOff + l];
+                s0 += m.get(r0 + l) * vl;
+                s1 += m.get(r1 + l) * vl;
+                s2 += m.get(r2 + l) * vl;
+                s3 += m.get(r3 + l) * vl;
+            }
+
+            o = outOff + i - start;
+            out[o] = s0;
+            out[o + 1] = s1;
+            out[o + 2] = s2;
+            out[o + 3] = s3;
+        }
+
+        for(; i < end; i++)
+            out[outOff + i - start] = dot(m, i * k, v, vOff, k);
+    }
+
+    //  As gemm() above, with b read from a buffer.
+    public static void gemm(double[] a, int n, DoubleBuffer b, int start, int end, int k, double[] c, int ldc)
+    {
+        for(int i = 0; i < n; i++)
+            gemv(b, start, end, k, a, i * k, c, i * ldc);
+    }
+
+    //  Rank one update of the lower triangle of a: a += w·x·xᵀ, x = x[xOff, xOff + k).
+    public static void addOuter(double[] a, int k, double w, double[] x, int xOff)
+    {
+        double wx;
+
+        for(int i = 0; i < k; i++)
+        {
+            wx = w * x[xOff + i];
+            for(int j = 0; j <= i; j++)
+                a[i * k + j] += wx * x[xOff + j];
+        }
+    }
+
+    /*
+     *  Adds the Gram matrix of rows [start, end) of m (a rows × k matrix) to the lower triangle of g:
+     *  g += Σ mᵢ·mᵢᵀ
+     */
+    public static void gram(double[] m, int start, int end, int k, double[] g)
+    {
+        for(int i = start; i < end; i++)
+            addOuter(g, k, 1, m, i * k);
+    }
+
+    /*
+     *  Solves the system of one row of implicit ALS. The row has the entries [start, end) of indices & ratings,
+     *  each one referring to a row of m (a rows × k matrix), with c = 1 + α·rating and p = 1 if rating > 0, 0 otherwise.
+     *  The ratings must be non-negative, so that c >= 1: with c < 1 the system may not be positive definite.
+     *  Instead of forming Mᵀ·C·M, MᵀM is reused and only the rows where c != 1 are added:
+     *      (MᵀM + Mᵀ(C - I)M + λI)·x = MᵀC·p
+     *  The system is symmetric positive definite, so it is solved with Cholesky.
+     *  mm: the lower triangle of MᵀM. a: a k×k buffer. x: a buffer of k values, the solution is left in it.
+     */
+    public static void solveRow(double[] m, int k, double[] mm, int[] indices, float[] ratings, int start, int end,
+                                double alpha, double lambda, double[] a, double[] x)
+    {
+        int mi;
+        double c, p;
+
+        System.arraycopy(mm, 0, a, 0, k * k);
+        Arrays.fill(x, 0, k, 0);
+
+        for(int j = start; j < end; j++)
+        {
+            mi = indices[j] * k;
+            c = 1 + alpha * ratings[j];
+            p = (ratings[j] > 0) ? 1 : 0;
+
+            if (c != 1)
+                addOuter(a, k, c - 1, m, mi);
+
+            if (p != 0)
+                axpy(c * p, m, mi, x, 0, k);
+        }
+
+        //  Adding the regularization term.
+        for(int l = 0; l < k; l++)
+            a[l * k + l] += lambda;
+
+        cholesky(a, k);
+        solve(a, k, x);
+    }
+
+    /*
+     *  Approximates the solution of the same system as solveRow() with steps of the conjugate gradient method,
+     *  starting from x, e.g. the row of the previous sweep. The system isn't formed: its product with a vector
+     *  costs O(k² + n·k) for the n entries of the row, instead of the O(k³) of the factorization.
+     *  x: k values, the approximation is left in it. r, p, ap: buffers of k values.
+     */
+    public static void cgRow(double[] m, int k, double[] mm, int[] indices, float[] ratings, int start, int end,
+                             double alpha, double lambda, double[] x, int steps, double[] r, double[] p, double[] ap)
+    {
+        double c, rr, next, step;
+
+        //  r = MᵀC·p - A·x
+        multiply(m, k, mm, indices, ratings, start, end, alpha, lambda, x, r);
+        for(int l = 0; l < k; l++)
+            r[l] = -r[l];
+
+        for(int j = start; j < end; j++)
+            if (ratings[j] > 0)
+            {
+                c = 1 + alpha * ratings[j];
+                axpy(c, m, indices[j] * k, r, 0, k);
+            }
+
+        System.arraycopy(r, 0, p, 0, k);
+        rr = dot(r, 0, r, 0, k);
+
+        for(int s = 0; s < steps && rr > CG_EPSILON; s++)
+        {
+            multiply(m, k, mm, indices, ratings, start, end, alpha, lambda, p, ap);
+            step = rr / dot(p, 0, ap, 0, k);
+
+            axpy(step, p, 0, x, 0, k);
+            axpy(-step, ap, 0, r, 0, k);
+            next = dot(r, 0, r, 0, k);
+
+            for(int l = 0; l < k; l++)
+                p[l] = r[l] + (next / rr) * p[l];
+            rr = next;
+        }
+    }
+
+    //  out = (MᵀM + Mᵀ(C - I)M + λI)·v, for the row of cgRow(). mm: the lower triangle of MᵀM.
+    private static void multiply(double[] m, int k, double[] mm, int[] indices, float[] ratings, int start, int end,
+                                 double alpha, double lambda, double[] v, double[] out)
+    {
+        int mi;
+        double w;
+
+        for(int i = 0; i < k; i++)
+            out[i] = lambda * v[i];
+
+        //  Each entry below the diagonal counts for both triangles.
+        for(int i = 0; i < k; i++)
+        {
+            out[i] += dot(mm, i * k, v, 0, i + 1);
+            for(int j = 0; j < i; j++)
+                out[j] += mm[i * k + j] * v[i];
+        }
+
+        for(int j = start; j < end; j++)
+        {
+            mi = indices[j] * k;
+            w = alpha * ratings[j] * dot(m, mi, v, 0, k);
+
+            if (w != 0)
+                axpy(w, m, mi, out, 0, k);
+        }
+    }
+
+    //  Copies the lower triangle of a to the upper one.
+    public static void symmetrize(double[] a, int k)
+    {
+        for(int i = 0; i < k; i++)
+            for(int j = 0; j < i; j++)
+                a[j * k + i] = a[i * k + j];
+    }
+
+    /*
+     *  Cholesky decomposition a = L·Lᵀ, in place.
+     *  Only the lower triangle of a is read and L overwrites it.
+     */
+    public static void cholesky(double[] a, int k)
+    {
+        double s;
+
+        for(int j = 0; j < k; j++)
+        {
+            s = a[j * k + j] - dot(a, j * k, a, j * k, j);
+
+            if (s <= 0)
+                throw new ArithmeticException("Matrix is not positive definite.");
+
+            s = Math.sqrt(s);
+            a[j * k + j] = s;
+
+            for(int i = j + 1; i < k; i++)
+                a[i * k + j] = (a[i * k + j] - dot(a, i * k, a, j * k, j)) / s;
+        }
+    }
+
+    /*
+     *  Solves L·Lᵀ·x = b, where L is the output of cholesky().
+     *  b is overwritten by x.
+     */
+    public static void solve(double[] l, int k, double[] b)
+    {
+        double s;
+
+        //  Forward substitution: L·z = b.
+        for(int i = 0; i < k; i++)
+            b[i] = (b[i] - dot(l, i * k, b, 0, i)) / l[i * k + i];
+
+        //  Back substitution: Lᵀ·x = z.
+        for(int i = k - 1; i >= 0; i--)
+        {
+            s = b[i];
+            for(int j = i + 1; j < k; j++)
+                s -= l[j * k + i] * b[j];
+            b[i] = s / l[i * k + i];
+        }
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  The squared norm of the residual below which cgRow() stops early.
+    private static final double CG_EPSILON = 1e-20;
+}
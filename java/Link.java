@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+
+/*
+ *  A connection between Master and a Worker or a client, using a length-prefixed binary protocol.
+ *  Every frame consists of a header (payload length and frame type) and the payload.
+ *  All values are little-endian and arrays of doubles are copied in bulk,
+ *  so no per-object metadata or boxing is involved.
+ *
+ *  Writing a frame:  begin(type), put...(), send().
+ *  Reading a frame:  receive() returns the type, then get...() in the same order.
+ *  A Worker sends HEARTBEAT frames from another thread while it calculates, see beat(). They are skipped
+ *  by receive(), which records when the peer was last heard from, so a silent one can be detected.
+ */
+public class Link
+{
+    private byte type;      //  The type of the frame being written.
+    private SocketChannel channel;
+    private ByteBuffer header, out, in;     //  Direct buffers, grown when a frame does not fit.
+    private ByteBuffer heartbeat;           //  The HEARTBEAT frame.
+    private final Object writing = new Object();    //  Keeps the heartbeats from splitting a frame.
+    private volatile long heard = System.nanoTime();    //  When the last frame was received.
+
+    //  Constructor.
+    public Link(SocketChannel channel) throws IOException
+    {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+
+        header = allocate(HEADER);
+        out = allocate(BUFFER);
+        in = allocate(BUFFER);
+        heartbeat = allocate(HEADER).putInt(0).put(HEARTBEAT);
+    }
+
+    //  Starts a new frame of the given type.
+    public void begin(byte type)
+    {
+        out.clear();
+        out.position(HEADER);
+        this.type = type;
+    }
+
+    public void putByte(byte value)
+    {
+        ensure(1);
+        out.put(value);
+    }
+
+    public void putInt(int value)
+    {
+        ensure(4);
+        out.putInt(value);
+    }
+
+    public void putLong(long value)
+    {
+        ensure(8);
+        out.putLong(value);
+    }
+
+    public void putFloat(float value)
+    {
+        ensure(4);
+        out.putFloat(value);
+    }
+
+    public void putDouble(double value)
+    {
+        ensure(8);
+        out.putDouble(value);
+    }
+
+    public void putInts(int[] values, int offset, int length)
+    {
+        ensure(4 * length);
+        out.asIntBuffer().put(values, offset, length);
+        out.position(out.position() + 4 * length);
+    }
+
+    public void putFloats(float[] values, int offset, int length)
+    {
+        ensure(4 * length);
+        out.asFloatBuffer().put(values, offset, length);
+        out.position(out.position() + 4 * length);
+    }
+
+    public void putDoubles(double[] values, int offset, int length)
+    {
+        ensure(8 * length);
+        out.asDoubleBuffer().put(values, offset, length);
+        out.position(out.position() + 8 * length);
+    }
+
+    //  Writes a matrix: its dimensions followed by its values.
+    public void putMatrix(Factors m)
+    {
+        putInt(m.rows);
+        putInt(m.k);
+        putDoubles(m.data, 0, m.rows * m.k);
+    }
+
+    //  Writes a sparse matrix of the given rows as its compressed arrays are (see SparseMatrix): offsets, indices, values.
+    public void putSparse(int[] offsets, int[] indices, float[] values, int rows)
+    {
+        putInts(offsets, 0, rows + 1);
+        putInts(indices, 0, offsets[rows]);
+        putFloats(values, 0, offsets[rows]);
+    }
+
+    //  Fills in the header and writes the frame to the channel.
+    public void send() throws IOException
+    {
+        out.flip();
+        out.putInt(0, out.limit() - HEADER);
+        out.put(4, type);
+
+        synchronized (writing)
+        {
+            while (out.hasRemaining())
+                channel.write(out);
+        }
+    }
+
+    //  Sends a HEARTBEAT frame. May be called by another thread than the one sending the frames.
+    public void beat() throws IOException
+    {
+        synchronized (writing)
+        {
+            heartbeat.clear();
+            while (heartbeat.hasRemaining())
+                channel.write(heartbeat);
+        }
+    }
+
+    //  The System.nanoTime() when the last frame, heartbeats included, was received.
+    public long heard() { return heard; }
+
+    //  Reads the next frame, skipping the heartbeats, and returns its type.
+    public byte receive() throws IOException
+    {
+        byte type;
+
+        while ((type = frame()) == HEARTBEAT)
+            ;
+
+        return type;
+    }
+
+    private byte frame() throws IOException
+    {
+        int length;
+
+        header.clear();
+        fill(header);
+        header.flip();
+        length = header.getInt();
+
+        if (length > in.capacity())
+            in = allocate(Math.max(length, 2 * in.capacity()));
+
+        in.clear();
+        in.limit(length);
+        fill(in);
+        in.flip();
+        heard = System.nanoTime();
+
+        return header.get();
+    }
+
+    public byte getByte() { return in.get(); }
+
+    public int getInt() { return in.getInt(); }
+
+    public long getLong() { return in.getLong(); }
+
+    public double getDouble() { return in.getDouble(); }
+
+    public void getInts(int[] values, int offset, int length)
+    {
+        in.asIntBuffer().get(values, offset, length);
+        in.position(in.position() + 4 * length);
+    }
+
+    public void getFloats(float[] values, int offset, int length)
+    {
+        in.asFloatBuffer().get(values, offset, length);
+        in.position(in.position() + 4 * length);
+    }
+
+    public void getDoubles(double[] values, int offset, int length)
+    {
+        in.asDoubleBuffer().get(values, offset, length);
+        in.position(in.position() + 8 * length);
+    }
+
+    //  Reads a matrix written by putMatrix.
+    public Factors getMatrix() { return getMatrix(null); }
+
+    //  Reads a matrix written by putMatrix into m if it has the same dimensions, into a new one otherwise.
+    public Factors getMatrix(Factors m)
+    {
+        int rows = getInt(), k = getInt();
+
+        if (m == null || m.rows != rows || m.k != k)
+            m = new Factors(rows, k);
+
+        getDoubles(m.data, 0, rows * k);
+
+        return m;
+    }
+
+
+    //  The number of bytes of the last frame written, header included.
+    public int written() { return out.limit(); }
+
+    public void close() throws IOException { channel.close(); }
+
+    //  Reads from the channel until the buffer is full.
+    private void fill(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer) < 0)
+                throw new EOFException("Connection closed.");
+    }
+
+    //  Makes room for n more bytes in the frame being written.
+    private void ensure(int n)
+    {
+        ByteBuffer tmp;
+
+        if (out.remaining() >= n)
+            return;
+
+        tmp = allocate(Math.max(out.capacity() * 2, out.position() + n));
+        out.flip();
+        tmp.put(out);
+        out = tmp;
+    }
+
+    private static ByteBuffer allocate(int capacity) { return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN); }
+
+    /*************************************** Constants ***************************************/
+
+    //  Frame types.
+    public static final byte SPECS = 1;     //  Worker -> Master: CPU cores and available memory.
+    public static final byte RATINGS = 2;   //  Master -> Worker: α, λ, the solver, the dimensions and the ratings by row, then by column.
+    //  Master -> Worker: turn, whether the updated X or Y was sent in PIECEs, else the matrix. The chunks to calculate follow.
+    public static final byte WORK = 3;
+    public static final byte RESULT = 4;    //  Worker -> Master: the first row of a chunk and its calculated rows.
+    public static final byte DONE = 5;      //  Master -> Worker: no more calculations.
+    public static final byte REQUEST = 6;   //  Client -> Master: a recommendation request, see RequestServer.
+    public static final byte REPLY = 7;     //  Master -> Client: the recommended pois.
+    public static final byte BATCH = 8;     //  Client -> Master: a recommendation request for many users.
+    public static final byte PART = 9;      //  Master -> Client: the recommended pois of a block of the users of a batch.
+    public static final byte FOLD = 10;     //  Client -> Master: new interactions of a user or a poi, folded into the model.
+    public static final byte CHUNK = 11;    //  Master -> Worker: a range of rows to calculate against the last X or Y sent.
+    public static final byte HEARTBEAT = 12;    //  Worker -> Master: still alive, no payload.
+    public static final byte PIECE = 13;    //  Master -> Worker: rows of the X or Y being calculated, as they are calculated.
+    //  Header: payload length (int) and frame type (byte).
+    private static final int HEADER = 5;
+    private static final int BUFFER = 1 << 16;
+}
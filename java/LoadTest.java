@@ -0,0 +1,117 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/*
+ *  Load test of the client request server of a running Master.
+ *  Every connection is kept open and sends its requests in pipelined batches,
+ *  then it waits for all the replies of the batch. Reports the requests per second
+ *  and the mean latency of a batch.
+ */
+public class LoadTest
+{
+    /************************ Settings **************************/
+
+            private static final int PORT = 4322;
+            private static final String IP_ADDRESS = "localhost";
+            //  Connections, requests in flight per connection and batches per connection, set with -Dconnections= etc.
+            private static final int CONNECTIONS = Integer.getInteger("connections", 16);
+            private static final int DEPTH = Integer.getInteger("depth", 16);
+            private static final int BATCHES = Integer.getInteger("batches", 500);
+            //  The users & pois asked, they should be within the dimensions of the model.
+            private static final int USERS = Integer.getInteger("users", 30);
+            private static final int K = Integer.getInteger("k", 5);
+
+    /************************************************************/
+
+    //  Main method
+    public static void main(String[] args) throws Exception
+    {
+        long start, replies = 0, nanos = 0;
+        long[] result;
+        ExecutorService pool = Executors.newFixedThreadPool(CONNECTIONS);
+        ArrayList<Future<long[]>> futures = new ArrayList<Future<long[]>>();
+
+        start = System.nanoTime();
+        for(int i = 0; i < CONNECTIONS; i++)
+            futures.add(pool.submit(new Connection(i)));
+
+        for(Future<long[]> future : futures)
+        {
+            result = future.get();
+            replies += result[0];
+            nanos += result[1];
+        }
+        pool.shutdown();
+
+        System.out.printf("%d requests, %d connections, %d in flight each.\n", replies, CONNECTIONS, DEPTH);
+        System.out.printf("%.0f requests/s, %.3f ms per batch.\n", replies / ((System.nanoTime() - start) / 1e9), nanos / 1e6 / (CONNECTIONS * BATCHES));
+    }
+
+    /*****************************************************************************************/
+
+    //  Sends the requests of a connection. Returns the replies received and the total batch time in ns.
+    private static class Connection implements Callable<long[]>
+    {
+        private int seed;
+
+        Connection(int seed) { this.seed = seed; }
+
+        public long[] call() throws IOException
+        {
+            long replies = 0, nanos = 0, start;
+            boolean[] answered = new boolean[DEPTH];
+            int tag;
+            Random random = new Random(seed);
+            Link link = new Link(SocketChannel.open(new InetSocketAddress(IP_ADDRESS, PORT)));
+
+            try
+            {
+                for(int b = 0; b < BATCHES; b++)
+                {
+                    start = System.nanoTime();
+
+                    for(int i = 0; i < DEPTH; i++)
+                    {
+                        link.begin(Link.REQUEST);
+                        link.putInt(i);
+                        link.putInt(random.nextInt(USERS));
+                        link.putInt(K);
+                        link.putInt(-1);
+                        link.putInt(0);
+                        link.putDouble(0);
+                        link.putDouble(0);
+                        link.putDouble(0);
+                        link.send();
+                        answered[i] = false;
+                    }
+
+                    //  The replies may arrive in any order.
+                    for(int i = 0; i < DEPTH; i++)
+                    {
+                        if (link.receive() != Link.REPLY)
+                            throw new IOException("Unexpected reply.");
+
+                        tag = link.getInt();
+                        if (tag < 0 || tag >= DEPTH || answered[tag] || link.getInt() < 0)
+                            throw new IOException("Unexpected reply.");
+
+                        answered[tag] = true;
+                        replies++;
+                    }
+
+                    nanos += System.nanoTime() - start;
+                }
+            }
+            finally
+            {
+                link.close();
+            }
+
+            return new long[] {replies, nanos};
+        }
+    }
+}
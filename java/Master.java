@@ -1,10 +1,21 @@
 import java.io.*;
 import java.net.*;
-import java.util.Scanner;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.*;
-import org.apache.commons.math3.linear.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 
@@ -12,33 +23,106 @@ public class Master
 {
     /************************ Settings **************************/
 
-            //  Number of Workers.
-            private static final int NODES = 4;
-            //  Row and column dimensions.
-            private static final int ROWS = 15;    //  765 |  5
-            private static final int COLS = 30;   //  1964 | 30
-            //  Filename of data file.
-            private static final String filename = "sample1.csv";
+            /*
+             *  Workers to wait for before a training starts, set with -Dquorum=.
+             *  Workers may connect or disconnect at any time, the rows of every half sweep are shared among the ones connected.
+             */
+            private static final int QUORUM = Integer.getInteger("quorum", 4);
+            /*
+             *  Data file and its row and column dimensions, set with -Ddata=, -Drows=, -Dcols=.
+             *  When the dimensions are 0 they are inferred from the largest ids in the file.
+             */
+            private static final String DATA = System.getProperty("data", "src" + File.separator + "main" + File.separator + "resources" + File.separator + "sample1.csv");
+            private static final int ROWS = Integer.getInteger("rows", 0);    //  765 | 15
+            private static final int COLS = Integer.getInteger("cols", 0);    // 1964 | 30
+            /*
+             *  Seconds between checks for new data, set with -Dretrain=.
+             *  When the data file has changed the model is retrained in the background.
+             *  0 trains only once and then releases the workers.
+             */
+            private static final int RETRAIN = Integer.getInteger("retrain", 60);
+            /*
+             *  Approximate top-K retrieval, enabled with -Dindex=true: an IVF index over Y is built for every model.
+             *  -Dnlist= the number of lists, 0 for about sqrt(pois). -Dnprobe= the lists scanned per request.
+             *  -Drecall= the users sampled to compare the index with the exact scan, 0 to skip it.
+             */
+            private static final boolean INDEX = Boolean.getBoolean("index");
+            private static final int NLIST = Integer.getInteger("nlist", 0);
+            private static final int NPROBE = Integer.getInteger("nprobe", 8);
+            private static final int RECALL = Integer.getInteger("recall", 100);
+            //  The poi catalogue, set with -Dpois=. Without it requests can't be filtered by distance or category.
+            private static final String POIS = System.getProperty("pois", "src" + File.separator + "main" + File.separator + "resources" + File.separator + "pois.csv");
+            /*
+             *  The file the trained model is saved to, set with -Dsnapshot=. At startup the model in it is served at once,
+             *  and it isn't trained again if the data file hasn't changed since.
+             */
+            private static final String SNAPSHOT = System.getProperty("snapshot", "model.bin");
+            /*
+             *  Retraining starts from the previous X & Y, unless -Dwarm=false. The rows of Y & X whose ratings changed are solved
+             *  again first, then -Dsweeps= full sweeps follow: -1 until the error is below the threshold, 0 none.
+             *  A new model with no previous one, or whose saved one used other α & λ, is always trained from scratch.
+             */
+            private static final boolean WARM = Boolean.parseBoolean(System.getProperty("warm", "true"));
+            private static final int SWEEPS = Integer.getInteger("sweeps", -1);
+            /*
+             *  The file X & Y are saved to after every half sweep, set with -Dcheckpoint=, empty for none.
+             *  If Master stops while training, the training resumes from it at the next start.
+             */
+            private static final String CHECKPOINT = System.getProperty("checkpoint", "checkpoint.bin");
+            //  Seconds a calculating worker may stay silent before it's dropped and its rows handed to the others, set with -Dtimeout=.
+            private static final int TIMEOUT = Integer.getInteger("timeout", 10);
+            /*
+             *  Pipelined half sweeps, unless -Dpipeline=false: the rows of X or Y are forwarded to the workers as they are
+             *  calculated, so the next half sweep starts without sending them, and the error of a sweep is calculated
+             *  while the next half sweep runs.
+             */
+            private static final boolean PIPELINE = Boolean.parseBoolean(System.getProperty("pipeline", "true"));
+            /*
+             *  The workers solve each row with -Dcg= steps of the conjugate gradient method, starting from the row of the
+             *  previous sweep, instead of exactly. Cheaper for a large k, see SolverBenchmark. 0, the default, solves exactly.
+             *  The rows solved by Master itself, when warm starting or folding in, are always solved exactly.
+             */
+            private static final int CG = Integer.getInteger("cg", 0);
             //  Connection settings.
             private static final int BACKLOG = 10;
+            private static final int C_BACKLOG = 1024;  //  Pending client connections.
             private static final int W_PORT = 4321;     //  Port used by workers.
             private static final int C_PORT = 4322;     //  Port used by clients.
 
     /************************************************************/
 
+    //  last: previous calculated value of the cost function.
+    private double last;
+    private long modified;                                 //  The last modification time of the data file used.
+    private boolean restored;                              //  Whether the restored model was trained on the current data file.
+    private boolean warm;                                  //  Whether X & Y were carried over from the previous model.
+    private RequestServer provider;                        //  Serves the clients.
+    private ServerSocketChannel listener;                  //  Accepts the workers, which use the binary protocol of the Link class.
+    private Factors y, x;
+    //  The snapshot used to serve the clients, read without locking. Null until the first one is published.
+    private final AtomicReference<Model> model = new AtomicReference<Model>();
+    /*
+     *  The input matrix, only its ratings are stored. Row i corresponds to poi i and column u to user u.
+     *  The C & P entries are derived from the ratings when needed: c = 1 + α·r and p = 1 if r > 0, 0 otherwise.
+     */
+    private volatile SparseMatrix r;
+    private int[] rowChecksums, columnChecksums;           //  The checksums of the rows & columns of r (see SparseMatrix).
     /*
-     *  total: the total weight of the workers.
-     *  The total variable is used in load balancing.
-     *  last: previous calculated value of the cost function.
+     *  The interactions folded in since the data file was last loaded, by user and by poi (see fold()).
+     *  They are folded into every model published until they are part of the loaded data. Guarded by this.
      */
-    private double total, last;
-    private ExecutorService pool;                          //  Thread pool for the threads handling the communication with the workers.
-    private ServerSocket provider;
-    private RealMatrix c, p, y, x;
-    private OpenMapRealMatrix r;                           //  The input matrix.
-    private ArrayList<Master.Worker> list;                 //  The list containing all the workers.
-    private ArrayList<Future<RealMatrix>> results;         //  The list where the result returned by each Worker is stored.
-    private ArrayList<Callable<RealMatrix>> callables;     //  The list where all the threads are stored.
+    private HashMap<Integer, HashMap<Integer, Float>> foldedUsers = new HashMap<Integer, HashMap<Integer, Float>>();
+    private HashMap<Integer, HashMap<Integer, Float>> foldedPois = new HashMap<Integer, HashMap<Integer, Float>>();
+    private Catalogue catalogue;                           //  The pois, null if there's no catalogue.
+    private CopyOnWriteArrayList<Master.Worker> list;      //  The workers connected, the failed ones until the next phase.
+    private int joined;                                    //  The workers that connected so far. Guarded by list.
+    private long phases;                                   //  The phases run so far, by all the trainings.
+    //  The ratings of the training in progress, sent to the workers that connect. Guarded by list.
+    private SparseMatrix ratings;
+    private ArrayList<WorkerThread> callables;             //  The calls to run, each one on its worker.
+    private ExecutorService saver;                         //  Writes the checkpoints in the background.
+    private Future<?> saving;                              //  The last checkpoint written.
+    private Factors savedX, savedY;                        //  The X & Y in it.
 
     //  Constructor.
     public Master() { initialize(); }
@@ -47,576 +131,1474 @@ public class Master
     private void initialize()
     {
         //  Checking parameters.
-        if (NODES <= 0 || ROWS <= 0 || COLS <= 0)
+        if (QUORUM <= 0 || ROWS < 0 || COLS < 0 || RETRAIN < 0 || NLIST < 0 || NPROBE <= 0 || RECALL < 0 || SWEEPS < -1 || TIMEOUT <= 0 || CG < 0)
         {
             System.out.println("Invalid parameters.");
             System.exit(0);
         }
 
         //  Initializing variables.
-        total = 0;
-        list = new ArrayList<Master.Worker>();
-        results = new ArrayList<Future<RealMatrix>>();
-        callables =  new ArrayList<Callable<RealMatrix>>();
-        pool = Executors.newFixedThreadPool(NODES);
+        list = new CopyOnWriteArrayList<Master.Worker>();
+        callables =  new ArrayList<WorkerThread>();
+        saver = Executors.newSingleThreadExecutor();
 
-        r = new OpenMapRealMatrix(ROWS, COLS);
-
-        //  Parsing .csv file.
+        //  Loading the catalogue, it's optional.
         try
         {
-            String[] values;
-            File file = new File("src\\main\\resources\\" + filename);
-            System.out.println(file.getAbsolutePath());
-            Scanner input = new Scanner(file);
-
-            while(input.hasNext())
-            {
-                values = input.nextLine().split(",");
-                r.setEntry(Integer.parseInt(values[0].trim()), Integer.parseInt(values[1].trim()), Double.parseDouble(values[2].trim()));
-            }
+            catalogue = new Catalogue(POIS);
+            System.out.printf("%d pois in the catalogue.\n", catalogue.size());
         }
         catch(FileNotFoundException fnfExc)
         {
-            fnfExc.printStackTrace();
-            System.exit(-1);
+            System.out.println("No poi catalogue, requests can't be filtered by distance or category.");
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        catch(IllegalArgumentException iaExc)
+        {
+            iaExc.printStackTrace();
         }
 
-        //  Initializing C, P matrices.
-        c = MatrixUtils.createRealMatrix(r.getRowDimension(), r.getColumnDimension());
-        p = MatrixUtils.createRealMatrix(r.getRowDimension(), r.getColumnDimension());
-
-        calculateCPMatrix();
-
-        //  The row dimension of the x,y matrices.
-        int k = (Math.max(r.getRowDimension(), r.getColumnDimension())) / 4;
-        k = (k == 0) ? 1 : k;       //  At least 1.
-
-        // Initializing X, Y matrices.
-        y = MatrixUtils.createRealMatrix(r.getRowDimension(), k);
-        x = MatrixUtils.createRealMatrix(r.getColumnDimension(), k);
-
-        RandomGenerator generator = new JDKRandomGenerator();
-
-        //  Initializing X & Y matrices.
-        for(int i = 0; i < y.getRowDimension(); i++)
-            for(int j = 0; j < y.getColumnDimension(); j++)
-                y.setEntry(i, j, generator.nextDouble());
-
-        for(int i = 0; i < x.getRowDimension(); i++)
-            for(int j = 0; j < x.getColumnDimension(); j++)
-                x.setEntry(i, j, generator.nextDouble());
-
-        //  Calculating cost/
-        last = cost();
+        //  The saved model is served at once. The data is loaded by openServer(), unless the model is up to date.
+        restored = restore();
+        if (restored)
+            discard();
+        else
+            resume();
     }
 
     /*
-     *  Partitions the matrix to be calculated (X or Y) and initializes the threads.
-     *  Returns the starting row of the next call.
-     *  start: the row form which the partitioning starts.
-     *  current: which matrix is being sent to the workers. If current == X then Y is calculated.
-     *  index: the index of the Worker in the list.
+     *  Serves the model saved in the snapshot file, if there's a valid one.
+     *  Returns true if it was trained on the current data file, so no training is needed.
+     *  Otherwise, if it was trained with the same α & λ, its X & Y are kept to start the training from them.
      */
-    private int partition(int start, RealMatrix current, int index)
+    private boolean restore()
     {
-        int end;
-        boolean turn;       //  Shows which matrix is being sent. If current == X then turn == true.
-        RealMatrix c, p;    //  These matrices are submatrices of the original C & P to be used by the workers.
-        int[] dimensions = new int[2];      //  The dimensions to be used by the worker.
-        Master.Worker w = list.get(index);
-
-        p = (current == x) ? y : x;
-
-        if (start >= p.getRowDimension())   //  If the workers are more than the total rows, only those needed are used.
-            return start;
-
-        /*
-         *  Each worker has a "weight", which is a function of its available memory and CPU cores.
-         *  Each worker calculates the percentage of rows corresponding the percentage of its weight
-         *  to the total weight of all the workers.
-         */
-        if (index < list.size() - 1)
-            end = (int) Math.round((w.weight / total) * p.getRowDimension()) + start;
-        else
-            end = p.getRowDimension();      // If it's the last worker, it calculates all the remaining rows.
+        Snapshot snapshot;
+        long start = System.nanoTime();
 
-        dimensions[0] = end - start;
-        dimensions[1] = current.getColumnDimension();
+        if (!new File(SNAPSHOT).exists())
+            return false;
 
-        if (current == x)   //  Initializing the corresponding C & P submatrices
+        try
         {
-            c = this.c.getSubMatrix(start, end - 1, 0, this.c.getColumnDimension() - 1);
-            p = this.p.getSubMatrix(start, end - 1, 0, this.p.getColumnDimension() - 1);
+            snapshot = Snapshot.read(SNAPSHOT);
         }
-        else
+        catch(IOException ioExc)    //  Trained again.
         {
-            c = this.c.getSubMatrix(0, this.c.getRowDimension() - 1, start, end - 1);
-            p = this.p.getSubMatrix(0, this.p.getRowDimension() - 1, start, end - 1);
+            ioExc.printStackTrace();
+            return false;
         }
 
-        turn = (current == x);
+        model.set(snapshot.model);
+        System.out.printf("Model %d restored from %s in %.1f ms.\n", snapshot.model.version, SNAPSHOT, (System.nanoTime() - start) / 1e6);
 
-        //  Adding the thread to the list. It will be executed later.
-        callables.add(index, new Master.WorkerThread(w, c, p, current, turn, dimensions));
+        if (INDEX)
+            model.set(snapshot.model.indexed(new Index(snapshot.model, NLIST, NPROBE)));
 
-        return end;
-    }
+        if (snapshot.alpha != ALPHA || snapshot.lambda != REGULARIZATION)
+            return false;
 
-    //  Marges the results calculated by each worker to one matrix.
-    private void merge(RealMatrix current)
-    {
-        try
+        if (snapshot.modified == new File(DATA).lastModified())
         {
-            /*
-             *  tmp: the data of the merged matrix.
-             *  aux1, aux2: auxiliary matrices.
-             */
-            double[][] tmp = results.get(0).get().getData(), aux1, aux2;
+            modified = snapshot.modified;
+            return true;
+        }
 
-            for (int i = 1; i < results.size(); i++)
-            {
-                aux1 = results.get(i).get().getData();
-                aux2 = new double[tmp.length + aux1.length][tmp[0].length];
+        carry(snapshot);
+        return false;
+    }
 
-                for (int k = 0; k < tmp.length + aux1.length; k++)
-                {
-                    for (int l = 0; l < tmp[0].length; l++)
-                    {
-                        if (k < tmp.length)
-                            aux2[k][l] = tmp[k][l];
-                        else
-                            aux2[k][l] = aux1[k - tmp.length][l];
-                    }
-                }
-                tmp = aux2;
-            }
+    //  Starts the training from the checkpoint of an unfinished one, if there's one with the same α & λ.
+    private void resume()
+    {
+        Snapshot checkpoint;
 
-            if (current == x)
-                y = MatrixUtils.createRealMatrix(tmp);
-            else
-                x = MatrixUtils.createRealMatrix(tmp);
+        if (CHECKPOINT.isEmpty() || !new File(CHECKPOINT).exists())
+            return;
 
-        }
-        catch (InterruptedException iExc)
+        try
         {
-            iExc.printStackTrace();
+            checkpoint = Snapshot.read(CHECKPOINT);
         }
-        catch (ExecutionException eExc)
+        catch(IOException ioExc)    //  Started from the model served.
         {
-            eExc.printStackTrace();
+            ioExc.printStackTrace();
+            return;
         }
+
+        if (checkpoint.alpha != ALPHA || checkpoint.lambda != REGULARIZATION)
+            return;
+
+        carry(checkpoint);
+        System.out.printf("Resuming the training from %s.\n", CHECKPOINT);
     }
 
-    private void openServer()
+    //  Keeps the X & Y of a snapshot to start the training from them.
+    private void carry(Snapshot snapshot)
     {
-        int k;
-        Thread t;
-        Master.Worker tmp;
-        Socket connection;
-        ObjectInputStream in;
-        RealMatrix current = x;
+        //  Copied, the training modifies them while the mapped ones are served.
+        x = new Factors(snapshot.model.users(), snapshot.model.k);
+        y = new Factors(snapshot.model.pois(), snapshot.model.k);
+        snapshot.model.x().get(x.data);
+        snapshot.model.y().get(y.data);
+        rowChecksums = snapshot.rowChecksums;
+        columnChecksums = snapshot.columnChecksums;
+    }
 
-        try
-        {
-            provider = new ServerSocket(W_PORT, BACKLOG);       //  Opening Master.
+    /*
+     *  Saves the current X & Y to the checkpoint file in the background, unless the previous one is still being written.
+     *  train() doesn't write a matrix again before the checkpoint holding it is written.
+     */
+    private void checkpoint()
+    {
+        final Model current = new Model(0, x, y, null);
+        final int[] rows = rowChecksums, columns = columnChecksums;
+        final long date = modified, size = r.size();
 
-            System.out.println("Awaiting workers...\n");
-            while (list.size() < NODES)       //  Waiting for all Workers.
-            {
-                connection = provider.accept();
-                in = new ObjectInputStream(connection.getInputStream());
-                //  Creating Worker object.
-                tmp = new Master.Worker(in, new ObjectOutputStream(connection.getOutputStream()), connection, (long[]) in.readObject());
-                //  Updating total weight.
-                total += tmp.weight;
-                //  Adding Worker to the list.
-                list.add(tmp);
-                System.out.printf("Worker %d connected.\n", list.size());
-            }
+        if (CHECKPOINT.isEmpty() || (saving != null && !saving.isDone()))
+            return;
 
-            //  Begin calculation.
-            while (true)
+        savedX = x;
+        savedY = y;
+        saving = saver.submit(new Runnable()
+        {
+            public void run()
             {
-                //  Switching matrix to be sent (X or Y).
-                current = (current == x) ? y : x;
-
-                System.out.printf("Calculating %c.\n", (current == x) ? 'y' : 'x');
-
-                /*
-                 *  Partitioning the matrix.
-                 *  The end of a call is the start of the next.
-                 *  Starting from 0.
-                 */
-                k = 0;
-                for(int i = 0; i < list.size(); i++)
-                    k = partition(k, current, i);
-
-                //  Running the threads and block till they all end.
-                results = (ArrayList) pool.invokeAll(callables);
-
-                //  Merging the results to a matrix.
-                merge(current);
-
-                //  Clearing results and threads for the next calculation.
-                callables.clear();
-                results.clear();
-
-                //  If both X & Y are calculated check the error.
-                if (current == x)
-                    if (error() < THRESHOLD)
-                        break;
+                try
+                {
+                    Snapshot.write(CHECKPOINT, current, ALPHA, REGULARIZATION, date, size, rows, columns);
+                }
+                catch(IOException ioExc)
+                {
+                    ioExc.printStackTrace();
+                }
             }
+        });
+    }
 
-            //  Creating termination threads, using the termination constructor.
-            for(int i = 0; i < list.size(); i++)
-                callables.add(new WorkerThread(list.get(i)));
-
-            //  Terminating Workers and shutting down thread pool.
-            pool.invokeAll(callables);
-            pool.shutdown();
-
-            //  Terminating communication with Workers.
-            provider.close();
-
-            //  Awaiting clients.
-            System.out.println("Awaiting clients...\n");
-            provider = new ServerSocket(C_PORT, BACKLOG);
-
-            while(true)
-            {
-                connection = provider.accept();
-                System.out.println("Client connected.");
+    //  Deletes the checkpoint, once the model is trained.
+    private void discard()
+    {
+        settle();
 
-                //  Creating request handler.
-                t = new Handler(connection);
+        if (!CHECKPOINT.isEmpty())
+            new File(CHECKPOINT).delete();
+    }
 
-                t.start();
-            }
-        }
-        catch (IOException ioExc)
-        {
-            ioExc.printStackTrace();
-        }
-        catch (ClassNotFoundException cnfExc)
+    //  Waits until the checkpoint being written, if any, is done.
+    private void settle()
+    {
+        try
         {
-            cnfExc.printStackTrace();
+            if (saving != null)
+                saving.get();
         }
         catch(InterruptedException iExc)
         {
             iExc.printStackTrace();
         }
-        finally
+        catch(ExecutionException eExc)
         {
-            try
-            {
-                //  Closing server.
-                provider.close();
-            }
-            catch(IOException ioExc)
-            {
-                ioExc.printStackTrace();
-            }
+            eExc.printStackTrace();
         }
     }
 
-    //  Calculates the C & P matrices.
-    private void calculateCPMatrix()
+    //  Waits until QUORUM workers are connected.
+    private void quorum() throws InterruptedException
     {
-        double e;
+        synchronized(list)
+        {
+            if (alive(list) < QUORUM)
+                System.out.printf("Waiting for %d workers.\n", QUORUM - alive(list));
 
-        for (int i = 0; i < r.getRowDimension(); i++)
-            for (int j = 0; j < r.getColumnDimension(); j++)
-            {
-                e = r.getEntry(i, j);
-                c.setEntry(i, j, 1 + ALPHA * e);
-                p.setEntry(i, j, (e > 0) ? 1 : 0);
-            }
+            while (alive(list) < QUORUM)
+                list.wait();
+        }
     }
 
-    //  Calculated the score of poi i for a given user u.
-    private synchronized double getScore(int u, int i)
+    //  The number of workers still connected.
+    private static int alive(List<Master.Worker> workers)
     {
-        RealVector xu = x.getRowVector(u);
-        RealVector yi = y.getRowVector(i);
+        int n = 0;
 
-        return yi.dotProduct(xu);
+        for(Master.Worker w : workers)
+            if (w.alive)
+                n++;
+
+        return n;
     }
 
-    //  Returns the recommendations.
-    private synchronized Poi[] getRecommendations(int u, int k, Poi poi)
+    /*
+     *  Parses the .csv file and initializes X & Y for a new calculation:
+     *  from the previous ones if there are any (see warm()), otherwise at random.
+     */
+    private void load() throws IOException
     {
-        //  poi: not used at this stage.
-        Poi[] pois;
-        ArrayList<Pair> list;
-
-        /*
-         *  Checking the parameters.
-         *  k is not a coordinate but multitude so equality is allowed.
-         */
-        if (u >= r.getColumnDimension() || k > r.getRowDimension())
-            return null;
+        File file = new File(DATA);
+        long date = file.lastModified();
+        SparseMatrix data;
+        int[] rows, columns;
 
-        //  Contains the values of each poi for a given user.
-        list = new ArrayList<Pair>(r.getRowDimension());
+        System.out.println(file.getAbsolutePath());
 
-        for(int id = 0; id < r.getRowDimension(); id++)
-            if (poi.getId() != id)
-                list.add(new Pair(id, getScore(u, id)));    //  Adding the Pairs.
+        //  The interactions folded in so far are in the file.
+        synchronized (this)
+        {
+            foldedUsers.clear();
+            foldedPois.clear();
+        }
 
-        Collections.sort(list);     //  The Pair class implements the Comparable interface.
+        data = CsvReader.read(DATA, ROWS, COLS);
+        modified = date;
+        synchronized (this)
+        {
+            r = data;
+        }
+        rows = r.rowChecksums();
+        columns = r.columnChecksums();
 
-        pois = new Poi[k];
+        warm = WARM && x != null && y != null;
+        if (warm)
+            warm(rows, columns);
+        else
+            cold();
 
-        //  The sorting is in ascending order. We need descending.
-        for(int q = 0; q < pois.length; q++)                        //  Dummy data.
-            pois[q] = new Poi(list.get(list.size() - q - 1).id, "The Great Rift", Math.E, Math.PI, "Dark Nebulae") ;
+        rowChecksums = rows;
+        columnChecksums = columns;
 
-        return pois;
+        //  Calculating cost.
+        last = cost();
     }
 
-    //  Calculated the cost function.
-    private double cost()
+    //  Initializes X & Y at random.
+    private void cold()
     {
-        RealVector xu, yi;
-        /*
-         *  done: is false only during the first execution of the inner loop.
-         *  It helps calculate sumy only once.
-         */
-        boolean done = false;
-        //  sumx, sumy: the sums used in the regularization term.
-        double tmp, sumx = 0.0, sumy = 0.0, sum = 0.0;
-
-        for(int u = 0; u < x.getRowDimension(); u++)
-        {
-            xu = x.getRowVector(u);
-            sumx += Math.pow(xu.getNorm(), 2);
-            for (int i = 0; i < y.getRowDimension(); i++)
-            {
-                yi = y.getRowVector(i);
+        //  The row dimension of the x,y matrices.
+        int k = (Math.max(r.rows, r.cols)) / 4;
+        k = (k == 0) ? 1 : k;       //  At least 1.
 
-                if (!done)
-                    sumy += Math.pow(yi.getNorm(), 2);
+        // Initializing X, Y matrices.
+        y = new Factors(r.rows, k);
+        x = new Factors(r.cols, k);
 
-                tmp = Math.pow(p.getEntry(i, u) - yi.dotProduct(xu), 2);
-                tmp *= c.getEntry(i, u);
+        RandomGenerator generator = new JDKRandomGenerator();
 
-                sum += tmp;
-            }
-            done = true;
-        }
+        //  Initializing X & Y matrices.
+        for(int i = 0; i < y.data.length; i++)
+            y.data[i] = generator.nextDouble();
 
-        return sum + LAMBDA*(sumx + sumy);
+        for(int i = 0; i < x.data.length; i++)
+            x.data[i] = generator.nextDouble();
     }
 
-    //  Calculates the error between two calculations.
-    private double error()
+    /*
+     *  Initializes X & Y from the previous ones, so retraining costs about as much as the ratings that changed.
+     *  New pois & users get random rows, k stays the same. The rows of Y whose ratings changed are solved again
+     *  with X fixed, then the changed rows of X with the new Y, as a sweep does but only for them.
+     *  rows, columns: the checksums of the new ratings, compared with those of the previous ones.
+     */
+    private void warm(int[] rows, int[] columns)
     {
-        double error;
-        double tmp = last;
-        double cost = cost();
+        int[] pois = changed(rowChecksums, rows), users = changed(columnChecksums, columns);
+        long start = System.nanoTime();
 
-        last = cost;
+        //  New matrices, the previous ones may be served.
+        y = resize(y, r.rows);
+        x = resize(x, r.cols);
 
-        error = Math.abs(cost - tmp);
-        System.out.printf("Error: %f\n", error);
-        System.out.println("========================");
+        solve(y, x, pois, r.offsets, r.indices, r.values);
+        solve(x, y, users, r.columnOffsets, r.columnIndices, r.columnValues);
 
-        return error;
+        System.out.printf("Warm start: %d of %d pois and %d of %d users solved again in %.1f ms.\n",
+                          pois.length, r.rows, users.length, r.cols, (System.nanoTime() - start) / 1e6);
     }
 
-    //  Main method
-    public static void main(String[] args) { new Master().openServer(); }
-
-    /*****************************************************************************************/
-
-    //  This class is used to store information about the Workers, it's used as a struct.
-    private static class Worker
+    //  Returns a copy of the first rows of m, with random rows added if there are more.
+    private static Factors resize(Factors m, int rows)
     {
-        long[] specs;       //  CPU cores and available memory.
-        double weight;      //  The weight of the Worker.
-        //  The socket and the IO streams of the Worker.
-        Socket connection;
-        ObjectInputStream in;
-        ObjectOutputStream out;
+        Factors resized = new Factors(rows, m.k);
+        RandomGenerator generator = new JDKRandomGenerator();
 
-        //  Constructor.
-        Worker(ObjectInputStream in, ObjectOutputStream out, Socket connection, long[] specs)
-        {
-            this.in = in;
-            this.out = out;
-            this.specs = specs;
-            this.connection = connection;
-            weight = CPU_WEIGHT*specs[CPU] + MEM_WEIGHT*specs[MEM];
-        }
-    }
+        System.arraycopy(m.data, 0, resized.data, 0, Math.min(rows, m.rows) * m.k);
+        for(int i = m.rows * m.k; i < resized.data.length; i++)
+            resized.data[i] = generator.nextDouble();
 
-    /*****************************************************************************************/
+        return resized;
+    }
 
-    // The Pair class is used in producing the recommendations.
-    private static class Pair implements Comparable<Pair>
+    //  Returns the rows whose checksum differs or which are new.
+    private static int[] changed(int[] previous, int[] current)
     {
-        int id;         //  The id of the object. In the next stage this field will be of type POI.
-        double val;     //  The value of the object.
-
-        //  Constructor.
-        Pair(int id, double val)
-        {
-            this.id = id;
-            this.val = val;
-        }
+        int n = 0;
+        int[] rows = new int[current.length];
 
-        //  The comparison is based on the value of the val field.
-        public int compareTo(Pair p)
-        {
-            if (this.val > p.val)
-                return 1;
-            else if (this.val == p.val)
-                return 0;
+        for(int i = 0; i < current.length; i++)
+            if (i >= previous.length || previous[i] != current[i])
+                rows[n++] = i;
 
-            return -1;
-        }
+        return Arrays.copyOf(rows, n);
     }
 
-    /*****************************************************************************************/
+    /*
+     *  Solves the given rows of m with fixed fixed, in parallel, the way the workers do.
+     *  The ratings of row i are in [offsets[i], offsets[i + 1]) of indices & values, each index being a row of fixed.
+     */
+    private static void solve(Factors m, Factors fixed, int[] rows, int[] offsets, int[] indices, float[] values)
+    {
+        ForkJoinPool cores = ForkJoinPool.commonPool();
+
+        if (rows.length > 0)
+            cores.invoke(new Solve(m, fixed, cores.invoke(new Gram(fixed, 0, fixed.rows)), rows, offsets, indices, values, 0, rows.length));
+    }
 
-    //  The WorkerThread handles the communication with Worker.
-    private static class WorkerThread implements Callable<RealMatrix>
+    /*
+     *  Sends the ratings to the workers. Any worker may be handed any rows of Y & X (see Phase),
+     *  so each one gets all of them. They are kept for the whole calculation, so each iteration
+     *  only the updated X or Y and the ranges of rows to calculate have to be sent.
+     */
+    private void assign() throws InterruptedException
     {
-        //  Data to be sent to Workers.
-        int[] dimensions;
-        boolean turn, done;
-        private Socket connection;
-        private RealMatrix c, p, m;
-        //  IO streams.
-        private ObjectInputStream in;
-        private ObjectOutputStream out;
+        prune();
 
-        //  This constructor is used to terminate a worker.
-        WorkerThread(Worker w)
+        //  A worker connecting from now on is sent them by the Acceptor.
+        synchronized(list)
         {
-            this.done = true;   //  No more calculations.
-            this.in = w.in;
-            this.out = w.out;
-            this.connection = w.connection;
-        }
+            ratings = r;
 
-        //  This one is used when we are not done yet.
-        WorkerThread(Worker w, RealMatrix c, RealMatrix p, RealMatrix m, boolean turn, int[] dimensions)
-        {
-            this.c = c;
-            this.p = p;
-            this.m = m;
-            this.turn = turn;
-            this.done = false;  //  There are still calculations remaining.
-            this.dimensions = dimensions;
-            this.in = w.in;
-            this.out = w.out;
-            this.connection = w.connection;
+            for(int i = 0; i < list.size(); i++)
+                callables.add(new Master.WorkerThread(list.get(i), ratings));
         }
 
-        // Implementing Callable<T> interface.
-        public RealMatrix call()
-        {
-            RealMatrix a = null;
+        invokeAll();
+    }
+
+    //  Runs each callable on its worker, after what it is running already, and waits for all of them.
+    private void invokeAll() throws InterruptedException
+    {
+        ArrayList<Future<Factors>> futures = new ArrayList<Future<Factors>>();
 
+        for(WorkerThread callable : callables)
+        {
             try
             {
-                out.writeBoolean(done);
-
-                //  If we are done, socket and streams are closed.
-                if (done)
-                {
-                    out.flush();
-                    out.close();
-                    in.close();
-                    connection.close();
-                }
-                else    // else, send the data to the client & read the result.
-                {
-                    out.writeObject(dimensions);
-                    out.writeBoolean(turn);
-                    out.writeObject(c);
-                    out.writeObject(p);
-                    out.writeObject(m);
-                    out.flush();
-                    a = (RealMatrix) in.readObject();
-                }
+                futures.add(callable.w.executor.submit(callable));
             }
-            catch (IOException ioExc)
+            catch(RejectedExecutionException reExc)    //  The worker failed meanwhile.
             {
-                ioExc.printStackTrace();
             }
-            catch(ClassNotFoundException cnfExc)
+        }
+
+        for(Future<Factors> future : futures)
+        {
+            try
             {
-                cnfExc.printStackTrace();
+                future.get();
             }
-            finally
+            catch(ExecutionException eExc)
             {
-                //  This value is added to the Future<RealMatrix> list.
-                return a;
+                eExc.printStackTrace();
             }
         }
-    }
 
-    /*****************************************************************************************/
+        callables.clear();
+    }
 
-    // The Handler class handles the client requests.
-    private class Handler extends Thread
+    //  Drops the failed workers from the list, called between phases so none of them is handed rows again.
+    private void prune()
     {
-        private Poi poi;    //  POI received by the client.
-        /*
-         *  k: multitude of POIs to recommend.
-         *  u: user id.
-         */
-        private int k, u;
-        private Poi[] recs;     // Recommendations for the client.
-        private Socket connection;
+        synchronized(list)
+        {
+            for(Master.Worker w : list)
+                if (!w.alive)
+                    list.remove(w);
+        }
+    }
 
-        public Handler(Socket connection) { this.connection = connection; }
+    /*
+     *  Opens the server. Clients are served right away, from the latest published model,
+     *  while the workers connect and the model is trained in the background.
+     */
+    private void openServer()
+    {
+        Acceptor acceptor;
+        long date, failed = 0;     //  The last modification time of the data file that couldn't be trained on.
 
-        //  Extending Thread class.
-        public void run()
+        try
         {
-            ObjectInputStream in = null;
-            ObjectOutputStream out = null;
-
-            try
+            //  Awaiting clients.
+            System.out.println("Awaiting clients...\n");
+            provider = new RequestServer(C_PORT, C_BACKLOG)
             {
-                //  Initializing streams.
-                in = new ObjectInputStream(connection.getInputStream());
-                out = new ObjectOutputStream(connection.getOutputStream());
+                protected int[] recommend(int u, int k, int poi, double radius, double latitude, double longitude, boolean same)
+                {
+                    return getRecommendations(u, k, poi, radius, latitude, longitude, same);
+                }
 
-                //  Reading input.
-                u = in.readInt();       //  User id.
-                poi = (Poi) in.readObject();    //  POI.
-                k = in.readInt();       //  Number of POIs.
+                protected Model model() { return model.get(); }
 
-                //  Producing recommendations.
-                recs = getRecommendations(u, k, poi);
+                protected boolean fold(boolean poi, int id, int[] ids, float[] ratings)
+                {
+                    return Master.this.fold(poi, id, ids, ratings);
+                }
+            };
+            provider.start();
 
-                //  Sending recommendations to client.
-                out.writeObject(recs);
-                out.flush();
+            listener = ServerSocketChannel.open();         //  Opening Master.
+            listener.bind(new InetSocketAddress(W_PORT), BACKLOG);
 
-                System.out.println("Request handled.");
-            }
-            catch(IOException ioExc)
+            System.out.println("Awaiting workers...\n");
+            acceptor = new Acceptor();
+            acceptor.start();
+            new Watchdog().start();
+
+            //  The data is only loaded if the restored model isn't up to date, which is served meanwhile.
+            date = new File(DATA).lastModified();
+            if (!restored && !retrain())
             {
-                ioExc.printStackTrace();
+                if (model.get() == null)    //  Nothing to serve.
+                    System.exit(-1);
+                failed = date;
             }
-            catch(ClassNotFoundException cnfExc)
+
+            /*
+             *  Retraining whenever the data file changes. If loading or training fails, the current model keeps being served
+             *  and the next change of the file is tried.
+             */
+            while (RETRAIN > 0)
             {
-                cnfExc.printStackTrace();
+                Thread.sleep(RETRAIN * 1000L);
+
+                date = new File(DATA).lastModified();
+                if (date == modified || date == failed)
+                    continue;
+
+                if (!retrain())
+                    failed = date;
             }
-            finally
+
+            //  No more workers, the ones that connected so far are terminated.
+            listener.close();
+            acceptor.join();
+
+            //  Creating termination threads, using the termination constructor.
+            for(int i = 0; i < list.size(); i++)
+                callables.add(new WorkerThread(list.get(i)));
+
+            //  Terminating Workers and shutting down their threads.
+            invokeAll();
+            for(Master.Worker w : list)
+                w.executor.shutdown();
+            saver.shutdown();
+        }
+        catch (IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        catch(InterruptedException iExc)
+        {
+            iExc.printStackTrace();
+        }
+    }
+
+    //  Loads the data file and trains on it. Returns false if either fails, the current model is still served then.
+    private boolean retrain() throws InterruptedException
+    {
+        try
+        {
+            load();
+            train(warm ? SWEEPS : -1);
+            return true;
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        catch(RuntimeException rExc)
+        {
+            rExc.printStackTrace();
+        }
+        catch(OutOfMemoryError oomExc)  //  E.g. ids far beyond the others in the data.
+        {
+            oomExc.printStackTrace();
+        }
+
+        return false;
+    }
+
+    /*
+     *  Calculates X & Y until the error is below the threshold, or for sweeps sweeps if it's not -1, and publishes them.
+     *  A sweep calculates X against the current Y, then Y against the new X, and it's counted once Y is done.
+     *  The rows of each one are shared among the workers by a Phase.
+     */
+    private void train(int sweeps) throws InterruptedException
+    {
+        Factors current = x, target;
+        Phase phase;
+        HashSet<Master.Worker> pulling;
+        /*
+         *  The results of the phases are written straight into two buffers of Y and two of X, in turn, allocated once.
+         *  The X & Y the training starts from may be served, so they are never written.
+         */
+        Factors[] ys = new Factors[2], xs = new Factors[2], buffers;
+        int b;
+        boolean continued = false;          //  Whether the fixed matrix was calculated by the previous phase.
+        Future<Double> pending = null;      //  The cost of the last sweep, calculated during the next half sweep.
+
+        //  Sending the ratings to the workers.
+        if (sweeps != 0)
+        {
+            quorum();
+            assign();
+        }
+
+        //  Begin calculation.
+        for(int sweep = 0; sweep != sweeps; )
+        {
+            //  Switching matrix to be sent (X or Y).
+            current = (current == x) ? y : x;
+
+            System.out.printf("Calculating %c.\n", (current == x) ? 'y' : 'x');
+
+            /*
+             *  Every worker pulls chunks of rows, a worker still busy with the previous phase joins when it's done.
+             *  The rows of a worker that fails are handed to the rest, and a worker that connects meanwhile joins at once.
+             *  If all of them fail, the phase waits for new ones.
+             */
+            buffers = (current == x) ? ys : xs;
+            b = (buffers[0] == ((current == x) ? y : x)) ? 1 : 0;
+            if (buffers[b] == null)
+                buffers[b] = new Factors((current == x) ? y.rows : x.rows, current.k);
+            else if (buffers[b] == savedX || buffers[b] == savedY)
+                settle();
+            target = buffers[b];
+
+            prune();
+            phase = new Phase(current, current == x, target, list, ++phases, continued);
+            continued = true;
+            pulling = new HashSet<Master.Worker>();
+            do
+            {
+                for(Master.Worker w : list)
+                    if (w.alive && pulling.add(w))
+                    {
+                        try
+                        {
+                            w.executor.execute(new Pull(w, phase));
+                        }
+                        catch(RejectedExecutionException reExc)     //  The worker failed meanwhile.
+                        {
+                        }
+                    }
+            }
+            while (!phase.done.await(POLL, TimeUnit.MILLISECONDS));
+            phase.report();
+
+            //  The calculated matrix replaces the previous one, which becomes the buffer of the next phase of its kind.
+            if (current == x)
+                y = target;
+            else
+                x = target;
+
+            //  A crash loses at most this half sweep.
+            checkpoint();
+
+            //  The error of the last sweep, this half sweep is kept anyway.
+            if (pending != null && error(pending) < THRESHOLD)
+                break;
+            pending = null;
+
+            //  If both X & Y are calculated check the error, while the next half sweep runs if there's one.
+            if (current == x)
+            {
+                sweep++;
+                if (PIPELINE && sweep != sweeps)
+                    pending = costLater();
+                else if (error(cost()) < THRESHOLD)
+                    break;
+            }
+        }
+
+        //  The workers that connect from now on get the ratings of the next training.
+        synchronized(list)
+        {
+            ratings = null;
+        }
+
+        //  Serving the trained model.
+        publish();
+        System.out.printf("Model %d published.\n", model.get().version);
+    }
+
+    /*
+     *  Publishes the current X & Y as the model used by the clients.
+     *  The requests already being handled keep using the previous snapshot.
+     *  train() replaces X & Y with new matrices, so the published ones are never modified.
+     *  The index, if enabled, is built before publishing, while the previous model is still served.
+     */
+    private void publish()
+    {
+        Model previous = model.get(), next;
+
+        next = new Model((previous == null) ? 1 : previous.version + 1, x, y, null);
+        if (INDEX)
+            next = next.indexed(new Index(next, NLIST, NPROBE));
+
+        if (next.index != null && RECALL > 0)
+            System.out.printf("Index: %d lists, %d probed, recall@%d %.3f.\n", next.index.nlist, next.index.nprobe, RECALL_K, next.recall(RECALL, RECALL_K, next.version));
+
+        //  The interactions folded in during the training aren't in it.
+        synchronized (this)
+        {
+            for(Map.Entry<Integer, HashMap<Integer, Float>> user : foldedUsers.entrySet())
+                refold(next, false, user.getKey());
+            for(Map.Entry<Integer, HashMap<Integer, Float>> poi : foldedPois.entrySet())
+                refold(next, true, poi.getKey());
+
+            model.set(next);
+        }
+
+        //  Saving the model for the next start.
+        try
+        {
+            Snapshot.write(SNAPSHOT, next, ALPHA, REGULARIZATION, modified, r.size(), rowChecksums, columnChecksums);
+            discard();
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+    }
+
+    /*
+     *  Folds in new interactions of user id, or of the new poi id if poi == true: its row is solved against the fixed
+     *  Y (or X) of the served model, from all its ratings, and served at once. Taking only one k × k solve, it doesn't
+     *  wait for the next training. The interactions are also appended to the data file, so the next training includes them.
+     *  ids: the pois (or users) rated, which must be in the model. A rating replaces an earlier one of the same pair.
+     *  A new id must be the next free one, ratings must be finite and non-negative (see CsvReader).
+     *  Nothing is written or kept unless the row is solved.
+     *  Returns false if the interactions can't be folded in.
+     */
+    private synchronized boolean fold(boolean poi, int id, int[] ids, float[] ratings)
+    {
+        Model m = model.get();
+        HashMap<Integer, Float> folded;
+        double[] row;
+
+        if (m == null || data() == null || id < 0 || id > free(m, poi) || (poi && id < m.pois()) || ids.length == 0)
+            return false;
+
+        for(int j = 0; j < ids.length; j++)
+            if (!(poi ? m.hasUser(ids[j]) : m.hasPoi(ids[j])) || !(ratings[j] >= 0) || Float.isInfinite(ratings[j]))
+                return false;
+
+        try
+        {
+            row = solve(m, poi, id, ids, ratings);
+            append(poi, id, ids, ratings);
+        }
+        catch(ArithmeticException aExc)
+        {
+            aExc.printStackTrace();
+            return false;
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+            return false;
+        }
+
+        folded = (poi ? foldedPois : foldedUsers).get(id);
+        if (folded == null)
+        {
+            folded = new HashMap<Integer, Float>();
+            (poi ? foldedPois : foldedUsers).put(id, folded);
+        }
+
+        for(int j = 0; j < ids.length; j++)
+            folded.put(ids[j], ratings[j]);
+
+        m.fold(poi, id, row);
+        return true;
+    }
+
+    /*
+     *  The loaded ratings. They aren't loaded while the restored model is up to date, then they're read by the first
+     *  fold, so that the rows folded in keep the ratings of the data. Null if they can't be read.
+     */
+    private synchronized SparseMatrix data()
+    {
+        if (r == null)
+        {
+            try
+            {
+                r = CsvReader.read(DATA, ROWS, COLS);
+            }
+            catch(IOException ioExc)
+            {
+                ioExc.printStackTrace();
+            }
+            catch(RuntimeException rExc)
+            {
+                rExc.printStackTrace();
+            }
+        }
+
+        return r;
+    }
+
+    //  The first user (or poi) id not in the model, the data or the interactions folded in, the largest id that can be folded in.
+    private int free(Model m, boolean poi)
+    {
+        SparseMatrix data = r;
+        int next = poi ? m.pois() : m.users();
+
+        if (data != null)
+            next = Math.max(next, poi ? data.rows : data.cols);
+
+        for(Integer id : (poi ? foldedPois : foldedUsers).keySet())
+            next = Math.max(next, id + 1);
+
+        return next;
+    }
+
+    //  Solves the row of user (or poi) id against m, from its ratings in the data and those folded in since, and serves it.
+    private void refold(Model m, boolean poi, int id)
+    {
+        if (poi && id < m.pois())   //  It was part of the training.
+            return;
+
+        m.fold(poi, id, solve(m, poi, id, new int[0], new float[0]));
+    }
+
+    //  Solves the row of user (or poi) id against m, from its ratings in the data, those folded in since and the given ones.
+    private double[] solve(Model m, boolean poi, int id, int[] added, float[] addedRatings)
+    {
+        SparseMatrix data = r;
+        HashMap<Integer, Float> all = new HashMap<Integer, Float>();
+        HashMap<Integer, Float> folded = (poi ? foldedPois : foldedUsers).get(id);
+        int n = 0;
+        int[] ids;
+        float[] ratings;
+
+        if (data != null && !poi && id < data.cols)
+            for(int j = data.columnOffsets[id]; j < data.columnOffsets[id + 1]; j++)
+                all.put(data.columnIndices[j], data.columnValues[j]);
+        else if (data != null && poi && id < data.rows)
+            for(int j = data.offsets[id]; j < data.offsets[id + 1]; j++)
+                all.put(data.indices[j], data.values[j]);
+
+        if (folded != null)
+            all.putAll(folded);
+        for(int j = 0; j < added.length; j++)
+            all.put(added[j], addedRatings[j]);
+
+        //  The data may be newer than the model, its rows that aren't in the model are left out.
+        ids = new int[all.size()];
+        ratings = new float[all.size()];
+        for(Map.Entry<Integer, Float> rating : all.entrySet())
+            if (poi ? m.hasUser(rating.getKey()) : m.hasPoi(rating.getKey()))
+            {
+                ids[n] = rating.getKey();
+                ratings[n++] = rating.getValue();
+            }
+
+        return m.solve(poi, Arrays.copyOf(ids, n), Arrays.copyOf(ratings, n), ALPHA, REGULARIZATION);
+    }
+
+    //  Appends the interactions to the data file as "poi, user, rating" lines.
+    private void append(boolean poi, int id, int[] ids, float[] ratings) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(DATA, "rw");
+        StringBuilder lines = new StringBuilder();
+
+        try
+        {
+            //  The last line may not end with a new line.
+            if (file.length() > 0)
+            {
+                file.seek(file.length() - 1);
+                if (file.read() != '\n')
+                    lines.append('\n');
+            }
+
+            for(int j = 0; j < ids.length; j++)
+                lines.append(poi ? id : ids[j]).append(", ").append(poi ? ids[j] : id).append(", ")
+                     .append(new BigDecimal(Float.toString(ratings[j])).toPlainString()).append('\n');
+
+            file.seek(file.length());
+            file.write(lines.toString().getBytes(StandardCharsets.US_ASCII));
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+
+    /*
+     *  Returns the recommendations. No lock is needed, the snapshot read is immutable.
+     *  Returns null if u or k are too big, or if no model has been trained yet.
+     *  poi: excluded, and its category is used if same == true.
+     *  radius: only the pois within radius km of (latitude, longitude) are scored, if it's > 0.
+     *  When latitude or longitude is NaN the coordinates of poi in the catalogue are used.
+     *  Filtering needs the catalogue, without it such requests return null.
+     */
+    private int[] getRecommendations(int u, int k, int poi, double radius, double latitude, double longitude, boolean same)
+    {
+        Model m = model.get();
+
+        /*
+         *  Checking the parameters.
+         *  k is not a coordinate but multitude so equality is allowed.
+         */
+        if (m == null || k <= 0 || !m.hasUser(u) || k > m.pois())
+            return null;
+
+        //  In descending order of score.
+        if (radius <= 0 && !same)
+            return m.recommend(u, k, poi);
+
+        if (catalogue == null || ((same || Double.isNaN(latitude) || Double.isNaN(longitude)) && !catalogue.contains(poi)))
+            return null;
+
+        if (Double.isNaN(latitude) || Double.isNaN(longitude))
+        {
+            latitude = catalogue.latitude(poi);
+            longitude = catalogue.longitude(poi);
+        }
+
+        //  Only the candidates are scored.
+        return m.recommend(u, k, poi, catalogue.near(latitude, longitude, radius, same ? catalogue.category(poi) : -1));
+    }
+
+    /*
+     *  Calculated the cost function:
+     *      Σ c(p - xᵀy)² + λ(Σ‖x‖² + Σ‖y‖²)
+     *  The unobserved entries (c = 1, p = 0) are never enumerated. Summing (xᵀy)² over every entry
+     *  gives Σ XᵀX∘YᵀY, so only the observed entries need to be corrected:
+     *      cost = Σ XᵀX∘YᵀY + Σobserved [c(p - xᵀy)² - (xᵀy)²] + λ(tr XᵀX + tr YᵀY)
+     *  The Gram matrices and the observed term are calculated in parallel.
+     */
+    private double cost() { return cost(x, y); }
+
+    private double cost(Factors x, Factors y)
+    {
+        int k = x.k;
+        ForkJoinPool cores = ForkJoinPool.commonPool();
+        double[] gx = cores.invoke(new Gram(x, 0, x.rows));
+        double[] gy = cores.invoke(new Gram(y, 0, y.rows));
+        double sum = cores.invoke(new Observed(x, y, 0, r.rows));
+        double trace = 0.0;
+
+        //  Σ XᵀX∘YᵀY using the lower triangles, the off-diagonal entries count twice.
+        for(int a = 0; a < k; a++)
+        {
+            trace += gx[a * k + a] + gy[a * k + a];
+            sum += gx[a * k + a] * gy[a * k + a];
+
+            for(int b = 0; b < a; b++)
+                sum += 2 * gx[a * k + b] * gy[a * k + b];
+        }
+
+        return sum + LAMBDA*trace;
+    }
+
+    //  Calculates the cost of the current X & Y in the background.
+    private Future<Double> costLater()
+    {
+        final Factors currentX = x, currentY = y;
+
+        return ForkJoinPool.commonPool().submit(new Callable<Double>()
+        {
+            public Double call() { return cost(currentX, currentY); }
+        });
+    }
+
+    //  The error of a cost calculated in the background, infinite if it failed.
+    private double error(Future<Double> cost) throws InterruptedException
+    {
+        try
+        {
+            return error(cost.get());
+        }
+        catch(ExecutionException eExc)
+        {
+            eExc.printStackTrace();
+            return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    //  Calculates the error between two calculations.
+    private double error(double cost)
+    {
+        double error;
+        double tmp = last;
+
+        last = cost;
+
+        error = Math.abs(cost - tmp);
+        System.out.printf("Error: %f\n", error);
+        System.out.println("========================");
+
+        return error;
+    }
+
+    //  Main method
+    public static void main(String[] args) { new Master().openServer(); }
+
+    /*****************************************************************************************/
+
+    //  This class is used to store information about the Workers, it's used as a struct.
+    private static class Worker
+    {
+        long[] specs;       //  CPU cores and available memory.
+        int index;          //  The order in which the Worker connected.
+        volatile Link link; //  The connection to the Worker, null once it failed.
+        //  Runs the exchanges with the Worker one at a time, in the order they are submitted.
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        //  The measured rows calculated per second, smoothed over the chunks. 0 until the first chunk.
+        volatile double rate;
+        volatile boolean alive = true;
+        volatile long waiting;  //  When Master started waiting for a result of the Worker, 0 if it isn't.
+        final AtomicInteger solved = new AtomicInteger();   //  The rows kept from the Worker in the current phase.
+        volatile long streamed;     //  The number of the last phase whose whole result was forwarded to the Worker.
+
+        //  Constructor.
+        Worker(Link link, long[] specs, int index)
+        {
+            this.link = link;
+            this.specs = specs;
+            this.index = index;
+        }
+
+        //  Updates the rate with a chunk of the given rows, calculated in the given ns.
+        void observe(int rows, long nanos)
+        {
+            double measured = rows / (Math.max(nanos, 1) / 1e9);
+
+            rate = (rate == 0) ? measured : SMOOTHING * measured + (1 - SMOOTHING) * rate;
+        }
+
+        /*
+         *  Drops the Worker, closing its connection. Any exchange with it fails from then on. The exchanges already
+         *  submitted return at once, then its thread ends, and the link with its buffers is released.
+         */
+        synchronized void fail(String reason)
+        {
+            if (!alive)
+                return;
+
+            alive = false;
+            System.out.printf("Worker %d %s, its rows are handed to the others.\n", index + 1, reason);
+
+            executor.shutdown();
+            try
+            {
+                link.close();
+            }
+            catch(IOException ioExc)
+            {
+                ioExc.printStackTrace();
+            }
+            link = null;
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  A range of rows handed out by a Phase.
+    private static class Chunk
+    {
+        final int start, end;
+        volatile Worker owner;                              //  The worker it was handed out to, not counting copies.
+        final AtomicBoolean finished = new AtomicBoolean();
+        final AtomicInteger copies = new AtomicInteger(1);  //  The workers calculating it.
+        //  When the owner started it, Long.MAX_VALUE while it waits behind another chunk.
+        volatile long started;
+
+        Chunk(int start, int end, Worker owner, long started)
+        {
+            this.start = start;
+            this.end = end;
+            this.owner = owner;
+            this.started = started;
+        }
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  A half sweep: the rows of Y (or X if turn == false) are calculated against the fixed X (or Y), in chunks
+     *  handed out to the workers as they ask for them, so a faster worker calculates more rows and a slower one
+     *  doesn't hold the others back. A chunk takes about TARGET seconds at the measured rate of its worker,
+     *  and the chunks shrink towards the end so that the workers finish together. Once no rows are left, an idle worker
+     *  calculates again a chunk that has been running for SPECULATE times as long as the fastest worker would need.
+     *  The first result of a chunk is kept.
+     */
+    private static class Phase
+    {
+        final Factors fixed, result;
+        final boolean turn;
+        final CountDownLatch done = new CountDownLatch(1);  //  Released when all the rows are calculated.
+        //  serial: the number of the phase, counted over all the trainings. continued: whether the previous one calculated fixed.
+        final long serial;
+        final boolean continued;
+        private final List<Worker> workers;                 //  All the workers, the ones connecting during the phase included.
+        private final AtomicInteger next = new AtomicInteger(), remaining;  //  next: the first row not handed out yet.
+        private final ConcurrentLinkedQueue<Chunk> running = new ConcurrentLinkedQueue<Chunk>();
+        private final ArrayList<Chunk> calculated = new ArrayList<Chunk>();     //  In the order they were calculated.
+        private final AtomicInteger chunks = new AtomicInteger(), speculated = new AtomicInteger(), requeued = new AtomicInteger();
+        private final long start = System.nanoTime();
+
+        Phase(Factors fixed, boolean turn, Factors result, List<Worker> workers, long serial, boolean continued)
+        {
+            this.serial = serial;
+            this.continued = continued;
+            this.fixed = fixed;
+            this.turn = turn;
+            this.result = result;
+            this.workers = workers;
+            remaining = new AtomicInteger(result.rows);
+            for(Worker w : workers)
+                w.solved.set(0);
+
+            if (result.rows == 0)
+                done.countDown();
+        }
+
+        //  Returns the next chunk for w, or null if there's none for now. queued: whether w is busy with another chunk.
+        Chunk take(Worker w, boolean queued)
+        {
+            int first, size, n = result.rows;
+            long now = System.nanoTime();
+            double fastest = 0;
+            Chunk chunk;
+
+            //  The chunks of the workers that failed first.
+            for(Chunk c : running)
+                if (!c.finished.get() && c.copies.get() == 0 && c.copies.compareAndSet(0, 1))
+                {
+                    c.owner = w;
+                    c.started = queued ? Long.MAX_VALUE : now;
+                    requeued.incrementAndGet();
+                    return c;
+                }
+
+            while ((first = next.get()) < n)
+            {
+                size = (w.rate > 0) ? (int) (w.rate * TARGET) : MIN_CHUNK;
+                size = Math.max(MIN_CHUNK, Math.min(size, (n - first) / (2 * Math.max(alive(workers), 1))));
+                size = Math.min(size, Math.max(MIN_CHUNK, MAX_RESULT / (8 * result.k)));
+                size = Math.min(size, n - first);
+
+                if (next.compareAndSet(first, first + size))
+                {
+                    chunk = new Chunk(first, first + size, w, queued ? Long.MAX_VALUE : now);
+                    running.add(chunk);
+                    chunks.incrementAndGet();
+                    return chunk;
+                }
+            }
+
+            //  Speculation, only when w would be idle otherwise.
+            if (queued)
+                return null;
+
+            for(Worker worker : workers)
+                if (worker.alive)
+                    fastest = Math.max(fastest, worker.rate);
+
+            if (fastest > 0)
+                for(Chunk c : running)
+                    if (!c.finished.get() && c.owner != w && now - c.started > SPECULATE * 1e9 * (c.end - c.start) / fastest
+                        && c.copies.compareAndSet(1, 2))
+                    {
+                        speculated.incrementAndGet();
+                        return c;
+                    }
+
+            return null;
+        }
+
+        //  Reads the rows of a chunk calculated by w from the link, unless another copy was first.
+        void complete(Chunk chunk, Worker w, Link link) throws IOException
+        {
+            if (link.getInt() != chunk.end - chunk.start || link.getInt() != result.k)
+                throw new IOException("Unexpected result.");
+
+            if (!chunk.finished.compareAndSet(false, true))
+                return;
+
+            link.getDoubles(result.data, result.row(chunk.start), (chunk.end - chunk.start) * result.k);
+            running.remove(chunk);
+            w.solved.addAndGet(chunk.end - chunk.start);
+            synchronized(calculated)
+            {
+                calculated.add(chunk);
+            }
+
+            if (remaining.addAndGet(chunk.start - chunk.end) == 0)
+                done.countDown();
+        }
+
+        //  The i-th chunk calculated, null if there's none yet.
+        Chunk calculated(int i)
+        {
+            synchronized(calculated)
+            {
+                return (i < calculated.size()) ? calculated.get(i) : null;
+            }
+        }
+
+        //  The chunks of a worker that failed are handed out again, at once if it was their only copy.
+        void release(Collection<Chunk> chunks)
+        {
+            for(Chunk chunk : chunks)
+            {
+                chunk.started = 0;
+                chunk.copies.decrementAndGet();
+            }
+        }
+
+        //  Prints the rows calculated by each worker.
+        void report()
+        {
+            System.out.printf("%d rows in %.1f ms, %d chunks, %d speculative, %d handed out again.\n",
+                              result.rows, (System.nanoTime() - start) / 1e6, chunks.get(), speculated.get(), requeued.get());
+            for(Worker w : workers)
+                if (w.alive || w.solved.get() > 0)
+                    System.out.printf("    Worker %d: %d rows, %.0f rows/s%s.\n", w.index + 1, w.solved.get(), w.rate, w.alive ? "" : ", failed");
+        }
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  Calculates chunks of a phase on a worker: sends it the fixed matrix, then pulls chunks from the phase until
+     *  there are none left, keeping DEPTH of them queued at the worker so it never waits for the next one.
+     */
+    private static class Pull implements Runnable
+    {
+        private Worker w;
+        private Phase phase;
+        private int forwarded;  //  The calculated chunks of the phase forwarded to the worker.
+
+        Pull(Worker w, Phase phase)
+        {
+            this.w = w;
+            this.phase = phase;
+        }
+
+        public void run()
+        {
+            ArrayDeque<Chunk> queued = new ArrayDeque<Chunk>();
+            ArrayDeque<Long> sent = new ArrayDeque<Long>();
+            Chunk chunk;
+            long now, last = 0;
+            boolean whole;
+            Link link = w.link;
+
+            //  The phase may be over by the time a slow worker gets to it.
+            if (phase.done.getCount() == 0 || !w.alive)
+                return;
+
+            try
+            {
+                //  The worker has the fixed matrix already if the whole result of the previous phase was forwarded to it.
+                whole = PIPELINE && phase.continued && w.streamed == phase.serial - 1;
+                link.begin(Link.WORK);
+                link.putByte(phase.turn ? (byte) 1 : (byte) 0);
+                link.putByte(whole ? (byte) 1 : (byte) 0);
+                if (!whole)
+                    link.putMatrix(phase.fixed);
+                link.send();
+
+                while (true)
+                {
+                    /*
+                     *  Only while at most one result is on its way and it's smaller than the socket buffers (see MAX_RESULT),
+                     *  so the worker never waits to send it while Master waits to send it the pieces. A chunk has at least
+                     *  MIN_CHUNK rows, so for a large k only while none is.
+                     */
+                    if (PIPELINE && (queued.isEmpty() || (queued.size() == 1 && bytes(queued.peek()) <= MAX_RESULT)))
+                        forward(link);
+
+                    while (queued.size() < DEPTH && phase.done.getCount() > 0 && (chunk = phase.take(w, !queued.isEmpty())) != null)
+                    {
+                        link.begin(Link.CHUNK);
+                        link.putInt(chunk.start);
+                        link.putInt(chunk.end);
+                        link.send();
+
+                        queued.add(chunk);
+                        sent.add(System.nanoTime());
+                    }
+
+                    if (queued.isEmpty())
+                    {
+                        if (phase.done.await(POLL, TimeUnit.MILLISECONDS))
+                        {
+                            //  The rest of the result, the next phase doesn't send it.
+                            if (PIPELINE)
+                            {
+                                forward(link);
+                                w.streamed = phase.serial;
+                            }
+                            return;
+                        }
+                        continue;
+                    }
+
+                    //  The watchdog drops the worker if it stays silent while calculating.
+                    w.waiting = System.nanoTime();
+                    if (link.receive() != Link.RESULT)
+                        throw new IOException("Unexpected frame.");
+                    w.waiting = 0;
+
+                    //  The chunks are calculated in order, each one starting when the previous one is done.
+                    chunk = queued.poll();
+                    now = System.nanoTime();
+                    w.observe(chunk.end - chunk.start, now - Math.max(sent.poll(), last));
+                    last = now;
+
+                    if (link.getInt() != chunk.start)
+                        throw new IOException("Unexpected result.");
+                    phase.complete(chunk, w, link);
+
+                    if (!queued.isEmpty() && queued.peek().owner == w)
+                        queued.peek().started = now;
+                }
+            }
+            catch(IOException ioExc)
+            {
+                if (w.alive)
+                    ioExc.printStackTrace();
+
+                w.waiting = 0;
+                w.fail("disconnected");
+                phase.release(queued);
+            }
+            catch(InterruptedException iExc)
+            {
+                iExc.printStackTrace();
+            }
+        }
+
+        //  The bytes of the result of a chunk.
+        private long bytes(Chunk chunk) { return 8L * (chunk.end - chunk.start) * phase.result.k; }
+
+        //  Forwards the rows of the chunks calculated since the last call, the first one marked as the start of a matrix.
+        private void forward(Link link) throws IOException
+        {
+            Factors m = phase.result;
+            Chunk piece;
+
+            while ((piece = phase.calculated(forwarded)) != null)
+            {
+                link.begin(Link.PIECE);
+                link.putByte((byte) ((phase.turn ? 0 : 1) | ((forwarded == 0) ? 2 : 0)));
+                link.putInt(m.rows);
+                link.putInt(piece.start);
+                link.putInt(piece.end - piece.start);
+                link.putInt(m.k);
+                link.putDoubles(m.data, m.row(piece.start), (piece.end - piece.start) * m.k);
+                link.send();
+                forwarded++;
+            }
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Calculates the lower triangle of the Gram matrix of rows [start, end) of m, splitting the rows among the threads.
+    private static class Gram extends RecursiveTask<double[]>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Factors m;
+        private int start, end;
+
+        Gram(Factors m, int start, int end)
+        {
+            this.m = m;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected double[] compute()
+        {
+            int middle;
+            double[] g, h;
+            Gram left;
+
+            if (end - start <= GRAIN)
+            {
+                g = new double[m.k * m.k];
+                Kernels.gram(m.data, start, end, m.k, g);
+                return g;
+            }
+
+            middle = (start + end) >>> 1;
+            left = new Gram(m, start, middle);
+            left.fork();
+            g = new Gram(m, middle, end).compute();
+            h = left.join();
+
+            for(int i = 0; i < g.length; i++)
+                g[i] += h[i];
+
+            return g;
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Solves rows [start, end) of the given rows of m, splitting them among the threads (see Kernels.solveRow).
+    private static class Solve extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Factors m, fixed;
+        private double[] gram;
+        private int[] rows, offsets, indices;
+        private float[] values;
+        private int start, end;
+
+        Solve(Factors m, Factors fixed, double[] gram, int[] rows, int[] offsets, int[] indices, float[] values, int start, int end)
+        {
+            this.m = m;
+            this.fixed = fixed;
+            this.gram = gram;
+            this.rows = rows;
+            this.offsets = offsets;
+            this.indices = indices;
+            this.values = values;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            int middle, k = m.k;
+            double[] a, v;
+
+            if (end - start <= GRAIN)
+            {
+                a = new double[k * k];
+                v = new double[k];
+
+                for(int i = start; i < end; i++)
+                {
+                    Kernels.solveRow(fixed.data, k, gram, indices, values, offsets[rows[i]], offsets[rows[i] + 1], ALPHA, REGULARIZATION, a, v);
+                    System.arraycopy(v, 0, m.data, m.row(rows[i]), k);
+                }
+                return;
+            }
+
+            middle = (start + end) >>> 1;
+            invokeAll(new Solve(m, fixed, gram, rows, offsets, indices, values, start, middle),
+                      new Solve(m, fixed, gram, rows, offsets, indices, values, middle, end));
+        }
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  Calculates the part of the cost function due to the observed entries of rows [start, end) of the input matrix:
+     *  Σ [c(p - xᵀy)² - (xᵀy)²]
+     */
+    private class Observed extends RecursiveTask<Double>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private Factors x, y;
+        private int start, end;
+
+        Observed(Factors x, Factors y, int start, int end)
+        {
+            this.x = x;
+            this.y = y;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected Double compute()
+        {
+            int middle;
+            Observed left;
+            double c, p, s, sum = 0.0;
+
+            if (end - start <= GRAIN)
+            {
+                //  Row i of the input matrix corresponds to poi i and column u to user u.
+                for(int i = start; i < end; i++)
+                    for(int j = r.offsets[i]; j < r.offsets[i + 1]; j++)
+                    {
+                        c = 1 + ALPHA * r.values[j];
+                        p = (r.values[j] > 0) ? 1 : 0;
+                        s = Kernels.dot(y.data, y.row(i), x.data, x.row(r.indices[j]), x.k);
+                        sum += c * (p - s) * (p - s) - s * s;
+                    }
+                return sum;
+            }
+
+            middle = (start + end) >>> 1;
+            left = new Observed(x, y, start, middle);
+            left.fork();
+            sum = new Observed(x, y, middle, end).compute();
+
+            return sum + left.join();
+        }
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  Accepts the workers until the listener is closed. A worker that connects during a training is sent its ratings
+     *  before it's added to the list, and it joins the training at the next phase. A worker leaves by disconnecting.
+     */
+    private class Acceptor extends Thread
+    {
+        Acceptor()
+        {
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            Link link;
+            Master.Worker w;
+
+            while (true)
             {
                 try
                 {
-                    //  Closing streams and socket.
-                    in.close();
-                    out.close();
-                    connection.close();
+                    link = new Link(listener.accept());
+
+                    if (link.receive() != Link.SPECS)
+                    {
+                        link.close();
+                        throw new IOException("Unexpected frame.");
+                    }
+
+                    synchronized(list)
+                    {
+                        w = new Master.Worker(link, new long[] {link.getLong(), link.getLong()}, joined++);
+                        //  Queued before any phase, the executor of the worker runs them in order.
+                        if (ratings != null)
+                            w.executor.submit(new WorkerThread(w, ratings));
+
+                        list.add(w);
+                        list.notifyAll();
+                    }
+
+                    System.out.printf("Worker %d connected: %d cores, %d MB.\n", w.index + 1, w.specs[CPU], w.specs[MEM]);
+                }
+                catch(ClosedChannelException ccExc)     //  Master is done.
+                {
+                    return;
                 }
                 catch(IOException ioExc)
                 {
@@ -626,6 +1608,118 @@ public class Master
         }
     }
 
+    /*****************************************************************************************/
+
+    /*
+     *  Drops the workers that stay silent for TIMEOUT seconds while Master waits for their results,
+     *  neither results nor heartbeats (see Link.beat()). A crashed machine doesn't close its connection, so its
+     *  chunks would otherwise never be handed out again.
+     */
+    private class Watchdog extends Thread
+    {
+        Watchdog()
+        {
+            setDaemon(true);
+        }
+
+        public void run()
+        {
+            long now, waiting;
+            Link link;
+
+            try
+            {
+                while (true)
+                {
+                    Thread.sleep(1000);
+                    now = System.nanoTime();
+
+                    for(Master.Worker w : list)
+                    {
+                        waiting = w.waiting;
+                        link = w.link;
+                        if (link != null && waiting != 0 && now - Math.max(waiting, link.heard()) > TIMEOUT * 1000000000L)
+                            w.fail("timed out");
+                    }
+                }
+            }
+            catch(InterruptedException iExc)
+            {
+                iExc.printStackTrace();
+            }
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  The WorkerThread sends the ratings to a Worker, or terminates it. The calculations are run by Pull.
+    private static class WorkerThread implements Callable<Factors>
+    {
+        //  Data to be sent to Workers.
+        boolean done;
+        private Worker w;
+        private Link link;
+        private SparseMatrix ratings;
+
+        //  This constructor is used to terminate a worker.
+        WorkerThread(Worker w)
+        {
+            this.done = true;   //  No more calculations.
+            this.w = w;
+            this.link = w.link;
+        }
+
+        //  This one is used once per training, to send the ratings of the rows of Y & X.
+        WorkerThread(Worker w, SparseMatrix ratings)
+        {
+            this.ratings = ratings;
+            this.done = false;
+            this.w = w;
+            this.link = w.link;
+        }
+
+        // Implementing Callable<T> interface.
+        public Factors call()
+        {
+            Factors a = null;
+
+            try
+            {
+                if (!w.alive)
+                    return null;
+                else if (ratings != null)   //  Sending the ratings, which are kept by the worker.
+                {
+                    //  Y is calculated by the rows of the input matrix, X by its columns.
+                    link.begin(Link.RATINGS);
+                    link.putInt(ALPHA);
+                    link.putDouble(REGULARIZATION);
+                    link.putInt(CG);
+                    link.putInt(ratings.rows);
+                    link.putInt(ratings.cols);
+                    link.putSparse(ratings.offsets, ratings.indices, ratings.values, ratings.rows);
+                    link.putSparse(ratings.columnOffsets, ratings.columnIndices, ratings.columnValues, ratings.cols);
+                    link.send();
+                }
+                else if (done)      //  If we are done, the connection is closed.
+                {
+                    link.begin(Link.DONE);
+                    link.send();
+                    link.close();
+                }
+            }
+            catch (IOException ioExc)
+            {
+                ioExc.printStackTrace();
+                w.fail("disconnected");
+            }
+            finally
+            {
+                //  This value is added to the Future<Factors> list.
+                return a;
+            }
+        }
+    }
+
     /*************************************** Constants ***************************************/
 
     //  Indexes for the rec[] array.
@@ -633,12 +1727,29 @@ public class Master
     private static final int MEM = 1;
     //  α value used in creating the C matrix.
     private static final int ALPHA = 40;
-    //  λ value used in regularization.
+    //  λ value used in regularization by the cost function.
     private static final double LAMBDA = 0.5;
+    //  λ value used in regularization when solving for X & Y, sent to the workers.
+    private static final double REGULARIZATION = 0.01;
+    //  Number of rows of X or Y handled by a single task when calculating the cost.
+    private static final int GRAIN = 64;
+    //  The number of pois compared when measuring the recall of the index.
+    private static final int RECALL_K = 10;
     //  Error margin.
     private static final double THRESHOLD = 0.1;
-    //  The weight (or significance) of memory and CPU cores.
-    private static final double MEM_WEIGHT = 0.4;
-    private static final double CPU_WEIGHT = 1 - MEM_WEIGHT;
+    /*
+     *  Scheduling of the rows among the workers (see Phase): the seconds a chunk should take, the fewest rows of a chunk,
+     *  the chunks queued at a worker, how many times as long as on the fastest worker a chunk runs before it's handed out
+     *  again, the weight of the latest chunk in the rate of a worker, the ms an idle worker waits before asking again
+     *  and the bytes of the result of a chunk, beyond MIN_CHUNK rows. The pieces are only forwarded to a worker while
+     *  its result on the way, if any, is at most MAX_RESULT (see Pull).
+     */
+    private static final double TARGET = 0.05;
+    private static final int MIN_CHUNK = 16;
+    private static final int DEPTH = 2;
+    private static final double SPECULATE = 2;
+    private static final double SMOOTHING = 0.5;
+    private static final int POLL = 5;
+    private static final int MAX_RESULT = 1 << 16;
 
 }
\ No newline at end of file
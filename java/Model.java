@@ -0,0 +1,314 @@
+import java.nio.DoubleBuffer;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ *  An immutable snapshot of a trained model, used to serve the recommendations.
+ *  A new snapshot is created for every trained X & Y pair and published by Master,
+ *  so requests read it without locking while a newer one may be swapped in.
+ *  The factor matrices must not be modified after the snapshot is created.
+ *  They are read through DoubleBuffers, wrapping the arrays of a trained model or mapping a Snapshot file.
+ *
+ *  The only exception are the rows folded in after training (see fold()): the row of a user, new or not,
+ *  or of a new poi, solved against the trained Y or X. They are kept aside from X & Y and read without locking.
+ *  The folded pois are not in the index, they are scored on every request.
+ */
+public class Model
+{
+    public final long version;      //  Increases with every snapshot published.
+    public final int k;             //  The number of columns of X & Y.
+    public final Index index;       //  The approximate index over Y, null to always scan Y.
+    //  Row u of X corresponds to user u, row i of Y to poi i. Both are row-major.
+    private final DoubleBuffer x, y;
+    //  The folded rows by id, shared by the indexed copy of the model.
+    private final ConcurrentHashMap<Integer, double[]> users, pois;
+    //  The lower triangles of XᵀX & YᵀY, calculated when first needed to fold a row in.
+    private double[] xx, yy;
+
+    //  Constructor, for a trained model.
+    public Model(long version, Factors x, Factors y, Index index)
+    {
+        this(version, x.k, DoubleBuffer.wrap(x.data), DoubleBuffer.wrap(y.data), index);
+    }
+
+    //  Constructor, for X & Y in buffers of rows × k values.
+    public Model(long version, int k, DoubleBuffer x, DoubleBuffer y, Index index)
+    {
+        this(version, k, x, y, index, new ConcurrentHashMap<Integer, double[]>(), new ConcurrentHashMap<Integer, double[]>());
+    }
+
+    private Model(long version, int k, DoubleBuffer x, DoubleBuffer y, Index index,
+                  ConcurrentHashMap<Integer, double[]> users, ConcurrentHashMap<Integer, double[]> pois)
+    {
+        this.version = version;
+        this.k = k;
+        this.x = x;
+        this.y = y;
+        this.index = index;
+        this.users = users;
+        this.pois = pois;
+    }
+
+    //  The same model with the given index.
+    public Model indexed(Index index) { return new Model(version, k, x, y, index, users, pois); }
+
+    //  The trained users & pois, without the folded ones.
+    public int users() { return x.capacity() / k; }
+
+    public int pois() { return y.capacity() / k; }
+
+    //  Whether there is a row for user u, trained or folded.
+    public boolean hasUser(int u) { return u >= 0 && (u < users() || users.containsKey(u)); }
+
+    public boolean hasPoi(int id) { return id >= 0 && (id < pois() || pois.containsKey(id)); }
+
+    /*
+     *  Sets the row of user u, or of poi id if poi == true, served from then on.
+     *  Only new pois can be folded in: a trained poi is only scored through the index & Y.
+     */
+    public void fold(boolean poi, int id, double[] row)
+    {
+        if (poi && id < pois())
+            throw new IllegalArgumentException("Only new pois can be folded in.");
+
+        (poi ? pois : users).put(id, row.clone());
+    }
+
+    /*
+     *  Solves the row of a user against Y, or of a poi against X if poi == true, from its ratings, as a worker does.
+     *  ids: the pois (or users) rated, which must have rows. Returns the row.
+     */
+    public double[] solve(boolean poi, int[] ids, float[] ratings, int alpha, double lambda)
+    {
+        int[] indices = new int[ids.length];
+        double[] rows = new double[ids.length * k], a = new double[k * k], v = new double[k];
+
+        //  Only the rated rows are gathered, the rest of the fixed matrix is summarized by its Gram matrix.
+        for(int j = 0; j < ids.length; j++)
+        {
+            System.arraycopy(poi ? user(ids[j]) : item(ids[j]), 0, rows, j * k, k);
+            indices[j] = j;
+        }
+
+        Kernels.solveRow(rows, k, gram(!poi), indices, ratings, 0, ids.length, alpha, lambda, a, v);
+        return v;
+    }
+
+    //  The lower triangle of YᵀY if y == true, otherwise of XᵀX. Calculated once, the folded rows aren't included.
+    private synchronized double[] gram(boolean y)
+    {
+        DoubleBuffer m = y ? this.y : x;
+        double[] g = y ? yy : xx, row = new double[k];
+
+        if (g != null)
+            return g;
+
+        g = new double[k * k];
+        for(int i = 0; i < m.capacity() / k; i++)
+        {
+            m.get(i * k, row, 0, k);
+            Kernels.addOuter(g, k, 1, row, 0);
+        }
+
+        if (y)
+            yy = g;
+        else
+            xx = g;
+
+        return g;
+    }
+
+    //  Read-only views of X & Y.
+    public DoubleBuffer x() { return x.asReadOnlyBuffer(); }
+
+    public DoubleBuffer y() { return y.asReadOnlyBuffer(); }
+
+    //  Copies row u of X, or returns its folded row.
+    private double[] user(int u)
+    {
+        double[] q = users.isEmpty() ? null : users.get(u);
+
+        if (q != null)
+            return q;
+
+        q = new double[k];
+        x.get(u * k, q, 0, k);
+        return q;
+    }
+
+    //  Copies row id of Y, or returns its folded row.
+    private double[] item(int id)
+    {
+        double[] row = (id < pois()) ? new double[k] : pois.get(id);
+
+        if (id < pois())
+            y.get(id * k, row, 0, k);
+
+        return row;
+    }
+
+    //  Offers the folded pois to best, scored for the query q.
+    private void offerFolded(TopK best, double[] q, int exclude)
+    {
+        for(Map.Entry<Integer, double[]> poi : pois.entrySet())
+            if (poi.getKey() != exclude)
+                best.offer(poi.getKey(), Kernels.dot(poi.getValue(), 0, q, 0, k));
+    }
+
+    /*
+     *  Returns the ids of the k pois with the highest score for user u, excluding poi exclude, in descending order of score.
+     *  The index is used if there is one, falling back to the exact scan if the lists probed hold less than k pois.
+     */
+    public int[] recommend(int u, int k, int exclude)
+    {
+        int[] ids;
+        double[] q;
+        TopK best;
+
+        if (index != null)
+        {
+            q = user(u);
+            ids = index.search(q, 0, k, exclude);
+
+            if (ids.length < k)
+                return exact(u, k, exclude);
+
+            if (pois.isEmpty())
+                return ids;
+
+            //  Merging the folded pois with those of the index.
+            best = new TopK(k);
+            for(int id : ids)
+                best.offer(id, Kernels.dot(y, id * this.k, q, 0, this.k));
+            offerFolded(best, q, exclude);
+
+            return best.sorted();
+        }
+
+        return exact(u, k, exclude);
+    }
+
+    /*
+     *  As recommend(), only scoring the given candidate pois.
+     *  Fewer than k ids are returned if there are fewer candidates.
+     */
+    public int[] recommend(int u, int k, int exclude, int[] candidates)
+    {
+        TopK best = new TopK(k);
+        double[] q = user(u);
+
+        for(int id : candidates)
+            if (id != exclude && id >= 0 && id < pois())
+                best.offer(id, Kernels.dot(y, id * this.k, q, 0, this.k));
+            else if (id != exclude && pois.containsKey(id))
+                best.offer(id, Kernels.dot(pois.get(id), 0, q, 0, this.k));
+
+        return best.sorted();
+    }
+
+    /*
+     *  As recommend(), scanning all the pois.
+     *  The scores of all pois are calculated at once as Y·xu and the best k are selected with a min-heap.
+     */
+    public int[] exact(int u, int k, int exclude)
+    {
+        TopK best = new TopK(k);
+        double[] scores = new double[pois()], q = user(u);
+
+        Kernels.gemv(y, 0, scores.length, this.k, q, 0, scores, 0);
+
+        for(int id = 0; id < scores.length; id++)
+            if (id != exclude)
+                best.offer(id, scores[id]);
+        offerFolded(best, q, exclude);
+
+        return best.sorted();
+    }
+
+    /*
+     *  Returns the ids of the k pois with the highest score for each user in users[start, end), in descending order of score.
+     *  If users is null the users start, ..., end - 1 are used. The list of a user that doesn't exist is null.
+     *  The scores are calculated as a blocked product X_batch·Yᵀ: the rows of the users are gathered and
+     *  Y is walked in tiles that fit in the cache, each tile used for every user before moving to the next.
+     */
+    public int[][] recommend(int[] users, int start, int end, int k)
+    {
+        int n = end - start, u, tile = Math.max(4, (TILE / (8 * this.k)) & ~3), last, pois = pois();
+        double[] batch = new double[n * this.k], scores = new double[n * tile];
+        TopK[] best = new TopK[n];
+        int[][] result = new int[n][];
+
+        //  Gathering the rows of X.
+        for(int i = 0; i < n; i++)
+        {
+            u = (users == null) ? start + i : users[start + i];
+
+            if (!hasUser(u) || k <= 0 || k > pois())
+                continue;
+
+            System.arraycopy(user(u), 0, batch, i * this.k, this.k);
+            best[i] = new TopK(k);
+        }
+
+        for(int t = 0; t < pois; t += tile)
+        {
+            last = Math.min(t + tile, pois);
+            Kernels.gemm(batch, n, y, t, last, this.k, scores, tile);
+
+            for(int i = 0; i < n; i++)
+                if (best[i] != null)
+                    for(int id = t; id < last; id++)
+                        best[i].offer(id, scores[i * tile + id - t]);
+        }
+
+        for(int i = 0; i < n; i++)
+            if (best[i] != null)
+            {
+                offerFolded(best[i], user((users == null) ? start + i : users[start + i]), -1);
+                result[i] = best[i].sorted();
+            }
+
+        return result;
+    }
+
+    /*
+     *  Measures the recall of the index: the fraction of the exact top k pois that recommend() returns,
+     *  over samples random users. Returns 1 if there is no index.
+     */
+    public double recall(int samples, int k, long seed)
+    {
+        int found = 0, total = 0, u;
+        int[] exact, approximate;
+        HashSet<Integer> set = new HashSet<Integer>();
+        Random random = new Random(seed);
+
+        k = Math.min(k, pois());
+        if (index == null || k == 0)
+            return 1;
+
+        for(int s = 0; s < samples; s++)
+        {
+            u = random.nextInt(users());
+
+            exact = exact(u, k, -1);
+            approximate = recommend(u, k, -1);
+
+            set.clear();
+            for(int id : exact)
+                set.add(id);
+            for(int id : approximate)
+                if (set.contains(id))
+                    found++;
+            total += exact.length;
+        }
+
+        return (double) found / total;
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  The size of a tile of Y in bytes.
+    private static final int TILE = 1 << 18;
+}
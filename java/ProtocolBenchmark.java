@@ -0,0 +1,180 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.*;
+import org.apache.commons.math3.linear.*;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.JDKRandomGenerator;
+
+/*
+ *  Compares Java serialization with the binary protocol of the Link class,
+ *  sending the factor matrices of input_matrix.csv over a loopback connection.
+ *  For each matrix it reports the bytes sent and the time per transfer (encoding, sending & decoding).
+ */
+public class ProtocolBenchmark
+{
+    /************************ Settings **************************/
+
+            //  Dimensions of input_matrix.csv.
+            private static final int ROWS = 765;
+            private static final int COLS = 1964;
+            //  Number of transfers, the first WARMUP are not measured.
+            private static final int WARMUP = 10;
+            private static final int ITERATIONS = 50;
+
+    /************************************************************/
+
+    private static ExecutorService pool = Executors.newSingleThreadExecutor();
+
+    //  Main method
+    public static void main(String[] args) throws Exception
+    {
+        int k = Math.max(ROWS, COLS) / 4;
+
+        System.out.printf("%-4s %-10s %14s %14s\n", "", "protocol", "bytes", "ms/transfer");
+
+        try
+        {
+            run("Y", random(ROWS, k));
+            run("X", random(COLS, k));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    //  Runs both protocols for matrix m.
+    private static void run(String name, RealMatrix m) throws Exception
+    {
+        double[] result = serialization(m);
+        System.out.printf("%-4s %-10s %14d %14.3f\n", name, "serial", (long) result[0], result[1]);
+
+        result = link(m);
+        System.out.printf("%-4s %-10s %14d %14.3f\n", name, "link", (long) result[0], result[1]);
+    }
+
+    //  Measures the transfer of m through ObjectOutputStream. Returns the bytes and ms per transfer.
+    private static double[] serialization(final RealMatrix m) throws Exception
+    {
+        long start = 0;
+        Future<?> sender;
+        ObjectInputStream in;
+        ServerSocket server = new ServerSocket(0);
+        final int port = server.getLocalPort();
+
+        sender = pool.submit(new Callable<Void>()
+        {
+            public Void call() throws IOException
+            {
+                Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                for(int i = 0; i < WARMUP + ITERATIONS; i++)
+                {
+                    out.writeObject(m);
+                    out.flush();
+                    out.reset();    //  Otherwise the same object is only sent once.
+                }
+
+                out.close();
+                socket.close();
+                return null;
+            }
+        });
+
+        Socket socket = server.accept();
+        in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        for(int i = 0; i < WARMUP + ITERATIONS; i++)
+        {
+            if (i == WARMUP)
+                start = System.nanoTime();
+            in.readObject();
+        }
+
+        start = System.nanoTime() - start;
+        sender.get();
+        in.close();
+        socket.close();
+        server.close();
+
+        return new double[] {serialized(m), start / 1e6 / ITERATIONS};
+    }
+
+    //  Measures the transfer of m through a Link. Returns the bytes and ms per transfer.
+    private static double[] link(final RealMatrix m) throws Exception
+    {
+        long start = 0;
+        Link link;
+        Future<Integer> sender;
+        ServerSocketChannel server = ServerSocketChannel.open();
+
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        final SocketAddress address = server.getLocalAddress();
+
+        sender = pool.submit(new Callable<Integer>()
+        {
+            public Integer call() throws IOException
+            {
+                Link out = new Link(SocketChannel.open(address));
+                Factors data = new Factors(m.getRowDimension(), m.getColumnDimension());
+
+                for(int i = 0; i < data.rows; i++)
+                    System.arraycopy(((Array2DRowRealMatrix) m).getDataRef()[i], 0, data.data, data.row(i), data.k);
+
+                for(int i = 0; i < WARMUP + ITERATIONS; i++)
+                {
+                    out.begin(Link.RESULT);
+                    out.putMatrix(data);
+                    out.send();
+                }
+
+                out.close();
+                return out.written();
+            }
+        });
+
+        link = new Link(server.accept());
+
+        for(int i = 0; i < WARMUP + ITERATIONS; i++)
+        {
+            if (i == WARMUP)
+                start = System.nanoTime();
+            link.receive();
+            link.getMatrix();
+        }
+
+        start = System.nanoTime() - start;
+        link.close();
+        server.close();
+
+        return new double[] {sender.get(), start / 1e6 / ITERATIONS};
+    }
+
+    //  The number of bytes of m when serialized.
+    private static int serialized(RealMatrix m) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+        out.writeObject(m);
+        out.close();
+
+        return bytes.size();
+    }
+
+    //  Creates a random rows × cols matrix.
+    private static RealMatrix random(int rows, int cols)
+    {
+        RandomGenerator generator = new JDKRandomGenerator();
+        RealMatrix m = new Array2DRowRealMatrix(rows, cols);
+
+        for(int i = 0; i < rows; i++)
+            for(int j = 0; j < cols; j++)
+                m.setEntry(i, j, generator.nextDouble());
+
+        return m;
+    }
+}
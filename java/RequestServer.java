@@ -0,0 +1,639 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *  Serves the client requests over persistent connections, using the frame format of the Link class.
+ *  A single thread multiplexes all the connections on a selector. The requests are answered by a fixed
+ *  pool of threads, so no thread is created per connection or per request.
+ *
+ *  A client may pipeline requests. Every request carries a tag, which is returned with its reply,
+ *  since the replies of a connection may be sent in a different order than the requests.
+ *  Backpressure: a connection is no longer read while it has PIPELINE requests being answered,
+ *  and no connection is read while PENDING requests are being answered in total.
+ *
+ *  REQUEST payload: tag, user id, number of pois, poi id to exclude, flags, radius in km, latitude, longitude.
+ *                   A radius <= 0 means any distance. Flags: SAME_CATEGORY for pois of the category of the poi only.
+ *  REPLY payload:   tag, number of pois (-1 if the request can't be answered), poi ids.
+ *
+ *  A BATCH request asks for the pois of many users at once and is answered by a stream of PART frames,
+ *  as the blocks of users are calculated on all the threads of the pool. The blocks may arrive in any order.
+ *  BATCH payload: tag, number of pois, number of users (-1 for all of them), user ids.
+ *  PART payload:  tag, number of users n, then for each user: user id, number of pois (-1 if it can't be answered), poi ids.
+ *                 The last PART of a batch has n = 0, or n = -1 if the batch can't be answered.
+ *  A batch counts as PARALLELISM requests towards the global limit, and its blocks are only calculated
+ *  while less than QUEUED bytes of its connection wait to be written.
+ *
+ *  A FOLD request submits interactions of a user, or of a new poi, and is answered by a REPLY once they are served.
+ *  FOLD payload: tag, flags (FOLD_POI for a poi), user (or poi) id, number of interactions n,
+ *                then for each one: poi (or user) id, rating (float).
+ *  Its REPLY has 1 as the number of pois and the id folded in, or -1 if it can't be folded in.
+ */
+public abstract class RequestServer extends Thread
+{
+    private Selector selector;
+    private ServerSocketChannel server;
+    private ThreadPoolExecutor executor;
+    private AtomicInteger pending = new AtomicInteger();           //  The requests being answered, over all the connections.
+    //  The connections with replies to be written or requests to be resumed, handed to the selector thread.
+    private ConcurrentLinkedQueue<Session> ready = new ConcurrentLinkedQueue<Session>();
+    private ArrayList<Session> paused = new ArrayList<Session>();   //  The connections not read because of the global limit.
+
+    //  Constructor, binding the server to the given port.
+    public RequestServer(int port, int backlog) throws IOException
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), backlog);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        //  At most PENDING requests and the blocks of one more batch are submitted, so the queue never rejects one.
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(PENDING + PARALLELISM));
+    }
+
+    /*
+     *  Returns the ids of the recommended pois, or null if the request can't be answered.
+     *  Called concurrently by the threads of the pool.
+     *  radius, latitude, longitude: only pois within radius km of the point, if radius > 0.
+     *  same: only pois of the category of poi.
+     */
+    protected abstract int[] recommend(int u, int k, int poi, double radius, double latitude, double longitude, boolean same);
+
+    //  Returns the model used for a batch, or null if there's none.
+    protected abstract Model model();
+
+    /*
+     *  Folds the interactions in, see FOLD. Returns false if they can't be. Called concurrently by the threads of the pool.
+     *  poi: whether id is a poi and ids are users.
+     */
+    protected abstract boolean fold(boolean poi, int id, int[] ids, float[] ratings);
+
+    public void run()
+    {
+        Iterator<SelectionKey> keys;
+        SelectionKey key;
+        Session session;
+
+        try
+        {
+            while (true)
+            {
+                selector.select();
+
+                //  Replies produced and requests completed since the last select.
+                while ((session = ready.poll()) != null)
+                    update(session);
+
+                if (pending.get() < PENDING)
+                    unpause();
+
+                keys = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    key = keys.next();
+                    keys.remove();
+
+                    try
+                    {
+                        if (key.isAcceptable())
+                            accept();
+                        else
+                        {
+                            session = (Session) key.attachment();
+
+                            if (key.isReadable())
+                                read(session);
+                            if (key.isValid() && key.isWritable())
+                                write(session);
+                        }
+                    }
+                    catch(IOException ioExc)    //  Only the connection is dropped.
+                    {
+                        ioExc.printStackTrace();
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel = server.accept();
+
+        if (channel == null)
+            return;
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        new Session(channel.register(selector, SelectionKey.OP_READ));
+    }
+
+    //  Reads what is available and submits the complete requests.
+    private void read(Session session) throws IOException
+    {
+        if (session.channel.read(session.in) < 0)
+        {
+            close(session.key);
+            return;
+        }
+
+        parse(session);
+    }
+
+    //  Submits the complete requests in the buffer of the session, as long as the limits allow it.
+    private void parse(Session session) throws IOException
+    {
+        int length, tag, k, count;
+        int[] users;
+        byte type;
+        ByteBuffer in = session.in;
+
+        in.flip();
+        while (in.remaining() >= HEADER && session.pending < PIPELINE && pending.get() < PENDING)
+        {
+            length = in.getInt(in.position());
+            type = in.get(in.position() + 4);
+
+            if (!(type == Link.REQUEST && length == REQUEST_LENGTH) && !(type == Link.BATCH && length >= BATCH_LENGTH && length <= MAX_BATCH)
+                && !(type == Link.FOLD && length >= FOLD_LENGTH && length <= MAX_BATCH && (length - FOLD_LENGTH) % 8 == 0))
+                throw new IOException("Unexpected frame.");
+
+            if (in.remaining() < HEADER + length)
+            {
+                //  Making room for a batch larger than the buffer.
+                if (in.capacity() < HEADER + length)
+                {
+                    session.in = allocate(HEADER + length).put(in);
+                    session.in.flip();
+                }
+                break;
+            }
+
+            in.position(in.position() + HEADER);
+            session.pending++;
+
+            if (type == Link.REQUEST || type == Link.FOLD)
+            {
+                pending.incrementAndGet();
+                executor.execute((type == Link.REQUEST) ? new Task(session, in) : new Fold(session, in, length));
+                continue;
+            }
+
+            tag = in.getInt();
+            k = in.getInt();
+            count = in.getInt();
+            users = null;
+
+            if (count < -1 || length != BATCH_LENGTH + 4L * Math.max(count, 0))
+                throw new IOException("Unexpected frame.");
+
+            if (count >= 0)
+            {
+                users = new int[count];
+                in.asIntBuffer().get(users);
+                in.position(in.position() + 4 * count);
+            }
+
+            new Batch(session, tag, k, users).start();
+        }
+        session.in.compact();
+
+        //  Backpressure: the connection is read again once some of its requests are answered.
+        if (session.pending >= PIPELINE || pending.get() >= PENDING)
+        {
+            session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_READ);
+
+            if (session.pending < PIPELINE && !paused.contains(session))
+                paused.add(session);
+        }
+    }
+
+    /*
+     *  Writes the queued replies of the session, then submits again the batches waiting for them to be written
+     *  if they're few enough. Both when the pool added replies (see update()) and when the socket is writable again.
+     */
+    private void write(Session session) throws IOException
+    {
+        ByteBuffer reply;
+        Runnable block;
+
+        while ((reply = session.out.peek()) != null)
+        {
+            session.channel.write(reply);
+
+            if (reply.hasRemaining())
+                break;      //  The socket buffer is full, the rest is written when it is writable again.
+
+            session.out.poll();
+            session.queued.addAndGet(-reply.capacity());
+        }
+
+        if (reply == null)
+            session.key.interestOps(session.key.interestOps() & ~SelectionKey.OP_WRITE);
+
+        if (session.queued.get() < QUEUED)
+            while ((block = session.stalled.poll()) != null)
+                executor.execute(block);
+    }
+
+    //  Applies the replies completed by the pool to a session. Runs on the selector thread.
+    private void update(Session session)
+    {
+        int done;
+
+        if (!session.key.isValid())
+            return;
+
+        done = session.completed.getAndSet(0);
+        session.pending -= done;
+
+        try
+        {
+            write(session);
+
+            if (!session.out.isEmpty())
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_WRITE);
+
+            //  Requests already buffered are submitted before the connection is read again.
+            if (done > 0 && session.pending < PIPELINE)
+            {
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+                parse(session);
+            }
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+            close(session.key);
+        }
+    }
+
+    //  Reads the connections paused by the global limit again.
+    private void unpause()
+    {
+        ArrayList<Session> sessions = new ArrayList<Session>(paused);
+
+        paused.clear();
+        for(Session session : sessions)
+        {
+            if (!session.key.isValid())
+                continue;
+
+            try
+            {
+                session.key.interestOps(session.key.interestOps() | SelectionKey.OP_READ);
+                parse(session);
+            }
+            catch(IOException ioExc)
+            {
+                ioExc.printStackTrace();
+                close(session.key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key)
+    {
+        Session session = (Session) key.attachment();
+
+        key.cancel();
+
+        //  The slots of the stalled batches are released, the running ones release theirs when they see the key is cancelled.
+        if (session != null)
+        {
+            paused.remove(session);
+            while (session.stalled.poll() != null)
+                pending.decrementAndGet();
+        }
+
+        try
+        {
+            key.channel().close();
+        }
+        catch(IOException ioExc)
+        {
+            ioExc.printStackTrace();
+        }
+    }
+
+    /*
+     *  Queues a reply of a session, called by the threads of the pool.
+     *  done: whether the request is fully answered.
+     */
+    private void reply(Session session, ByteBuffer reply, boolean done)
+    {
+        session.queued.addAndGet(reply.capacity());
+        session.out.add(reply);
+        if (done)
+            session.completed.incrementAndGet();
+        ready.add(session);
+        selector.wakeup();
+    }
+
+    private static ByteBuffer allocate(int capacity) { return allocate(capacity, true); }
+
+    private static ByteBuffer allocate(int capacity, boolean direct)
+    {
+        return (direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity)).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /*****************************************************************************************/
+
+    //  The state of a connection.
+    private class Session
+    {
+        SelectionKey key;
+        SocketChannel channel;
+        ByteBuffer in = allocate(BUFFER);
+        //  The replies to be written, added by the pool and written by the selector thread.
+        ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<ByteBuffer>();
+        int pending;                                        //  Requests submitted and not yet applied by update().
+        AtomicInteger completed = new AtomicInteger();      //  Requests answered since the last update().
+        AtomicLong queued = new AtomicLong();               //  The bytes in out.
+        //  The blocks of batches waiting for out to be written.
+        ConcurrentLinkedQueue<Runnable> stalled = new ConcurrentLinkedQueue<Runnable>();
+
+        Session(SelectionKey key)
+        {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            key.attach(this);
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Answers a request and queues its reply.
+    private class Task implements Runnable
+    {
+        private Session session;
+        private int tag, u, k, poi, flags;
+        private double radius, latitude, longitude;
+
+        //  Reads the payload of the request from in.
+        Task(Session session, ByteBuffer in)
+        {
+            this.session = session;
+            tag = in.getInt();
+            u = in.getInt();
+            k = in.getInt();
+            poi = in.getInt();
+            flags = in.getInt();
+            radius = in.getDouble();
+            latitude = in.getDouble();
+            longitude = in.getDouble();
+        }
+
+        public void run()
+        {
+            int[] ids = null;
+            ByteBuffer reply;
+
+            try
+            {
+                ids = recommend(u, k, poi, radius, latitude, longitude, (flags & SAME_CATEGORY) != 0);
+            }
+            catch(RuntimeException rExc)     //  The request is answered as one that can't be.
+            {
+                rExc.printStackTrace();
+            }
+
+            reply = allocate(HEADER + 8 + 4 * ((ids == null) ? 0 : ids.length), false);
+            reply.putInt(reply.capacity() - HEADER);
+            reply.put(Link.REPLY);
+            reply.putInt(tag);
+            reply.putInt((ids == null) ? -1 : ids.length);
+            if (ids != null)
+                reply.asIntBuffer().put(ids);
+            reply.clear();
+
+            pending.decrementAndGet();
+            reply(session, reply, true);
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Folds the interactions of a FOLD request in and queues its reply.
+    private class Fold implements Runnable
+    {
+        private Session session;
+        private int tag, id;
+        private boolean poi;
+        private int[] ids;
+        private float[] ratings;
+
+        //  Reads the payload of the request from in.
+        Fold(Session session, ByteBuffer in, int length)
+        {
+            this.session = session;
+            tag = in.getInt();
+            poi = (in.getInt() & FOLD_POI) != 0;
+            id = in.getInt();
+            ids = new int[(length - FOLD_LENGTH) / 8];
+            ratings = new float[ids.length];
+
+            in.getInt();    //  Implied by the length.
+            for(int j = 0; j < ids.length; j++)
+            {
+                ids[j] = in.getInt();
+                ratings[j] = in.getFloat();
+            }
+        }
+
+        public void run()
+        {
+            boolean folded = false;
+            ByteBuffer reply;
+
+            try
+            {
+                folded = fold(poi, id, ids, ratings);
+            }
+            catch(RuntimeException rExc)     //  The request is answered as one that can't be.
+            {
+                rExc.printStackTrace();
+            }
+
+            reply = allocate(HEADER + (folded ? 12 : 8), false);
+            reply.putInt(reply.capacity() - HEADER);
+            reply.put(Link.REPLY);
+            reply.putInt(tag);
+            reply.putInt(folded ? 1 : -1);
+            if (folded)
+                reply.putInt(id);
+            reply.clear();
+
+            pending.decrementAndGet();
+            reply(session, reply, true);
+        }
+    }
+
+    /*****************************************************************************************/
+
+    /*
+     *  A batch request. Its users are split in blocks of BLOCK users, which are calculated by
+     *  up to PARALLELISM threads of the pool. Each thread takes the next block until there are none left.
+     */
+    private class Batch implements Runnable
+    {
+        private Session session;
+        private Model model;        //  The same snapshot is used for the whole batch.
+        private int tag, k, users, blocks;
+        private int[] ids;          //  The user ids, null for all the users.
+        private AtomicInteger next = new AtomicInteger(), running = new AtomicInteger();
+
+        Batch(Session session, int tag, int k, int[] ids)
+        {
+            this.session = session;
+            this.tag = tag;
+            this.k = k;
+            this.ids = ids;
+            model = model();
+        }
+
+        //  Submits the threads of the batch, or replies at once if it can't be answered or is empty.
+        void start()
+        {
+            int threads;
+
+            if (model != null)
+            {
+                users = (ids == null) ? model.users() : ids.length;
+                blocks = (users + BLOCK - 1) / BLOCK;
+            }
+
+            if (model == null || blocks == 0)
+            {
+                reply(session, end((model == null) ? -1 : 0), true);
+                return;
+            }
+
+            threads = Math.min(PARALLELISM, blocks);
+            running.set(threads);
+            pending.addAndGet(threads);
+
+            for(int i = 0; i < threads; i++)
+                executor.execute(this);
+        }
+
+        public void run()
+        {
+            int block, start, end, size;
+            int[][] lists;
+            ByteBuffer part;
+
+            try
+            {
+                while (session.key.isValid() && (block = next.getAndIncrement()) < blocks)
+                {
+                    start = block * BLOCK;
+                    end = Math.min(start + BLOCK, users);
+                    lists = model.recommend(ids, start, end, k);
+
+                    size = HEADER + 8;
+                    for(int i = 0; i < lists.length; i++)
+                        size += 8 + 4 * ((lists[i] == null) ? 0 : lists[i].length);
+
+                    part = allocate(size, false);
+                    part.putInt(size - HEADER);
+                    part.put(Link.PART);
+                    part.putInt(tag);
+                    part.putInt(lists.length);
+                    for(int i = 0; i < lists.length; i++)
+                    {
+                        part.putInt((ids == null) ? start + i : ids[start + i]);
+                        part.putInt((lists[i] == null) ? -1 : lists[i].length);
+                        if (lists[i] != null)
+                            for(int id : lists[i])
+                                part.putInt(id);
+                    }
+                    part.clear();
+
+                    //  Waiting for the connection to catch up, the selector thread submits the thread again.
+                    if (session.queued.get() + size > QUEUED && next.get() < blocks)
+                    {
+                        session.stalled.add(this);
+                        reply(session, part, false);
+                        return;
+                    }
+
+                    reply(session, part, false);
+                }
+            }
+            catch(RuntimeException rExc)    //  The rest of the blocks are skipped.
+            {
+                rExc.printStackTrace();
+                next.set(blocks);
+            }
+
+            pending.decrementAndGet();
+
+            //  The last thread ends the batch, after the blocks of all the threads are queued.
+            if (running.decrementAndGet() == 0)
+                reply(session, end(0), true);
+        }
+
+        private ByteBuffer end(int n)
+        {
+            ByteBuffer part = allocate(HEADER + 8, false);
+
+            part.putInt(8);
+            part.put(Link.PART);
+            part.putInt(tag);
+            part.putInt(n);
+            part.clear();
+
+            return part;
+        }
+    }
+
+    /*************************************** Constants ***************************************/
+
+    //  Request flags.
+    public static final int SAME_CATEGORY = 1;
+    //  Fold flags.
+    public static final int FOLD_POI = 1;
+
+    //  The most requests of a single connection being answered at once.
+    private static final int PIPELINE = 64;
+    //  The most requests being answered at once, over all the connections.
+    private static final int PENDING = 4096;
+    //  Header: payload length (int) and frame type (byte), as in Link.
+    private static final int HEADER = 5;
+    private static final int REQUEST_LENGTH = 44;
+    private static final int FOLD_LENGTH = 16;      //  Without the interactions.
+    private static final int BUFFER = 1 << 12;
+    //  Batches: payload without the user ids and largest payload, users per block and threads per batch.
+    private static final int BATCH_LENGTH = 12;
+    private static final int MAX_BATCH = 1 << 26;
+    private static final int BLOCK = 64;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    //  The most bytes of replies waiting to be written before the blocks of a batch stop being calculated.
+    private static final int QUEUED = 1 << 22;
+}
@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/*
+ *  A trained model stored in a binary file, so that Master can serve it right after a restart.
+ *  The file is memory-mapped and the model reads X & Y straight from the mapping, nothing is decoded.
+ *
+ *  Layout, little-endian:
+ *      0   int     MAGIC
+ *      4   int     FORMAT, the version of this layout
+ *      8   long    the version of the model
+ *      16  int     users, the rows of X
+ *      20  int     pois, the rows of Y
+ *      24  int     k
+ *      28  int     α
+ *      32  double  λ used by the workers when solving
+ *      40  long    the last modification time of the data file the model was trained on
+ *      48  long    the number of ratings of the data file
+ *      56  long    CRC32C of the rest of the file, header included
+ *      64          X, then Y, row-major doubles
+ *                  then the checksums of the ratings of every poi, then of every user, ints (see SparseMatrix)
+ *  The checksums tell which rows & columns of the data changed since the model was trained, so it can be
+ *  retrained starting from it (see Master.warm()). The user & poi ids are the row indices of X & Y, so no mapping between them is stored.
+ *  A file is written under a temporary name and then renamed, so a reader never sees it half written
+ *  and a model mapped from the previous file stays valid.
+ */
+public class Snapshot
+{
+    public final Model model;
+    public final int alpha;
+    public final double lambda;
+    public final long modified, ratings;
+    public final int[] rowChecksums, columnChecksums;
+
+    private Snapshot(Model model, int alpha, double lambda, long modified, long ratings, int[] rowChecksums, int[] columnChecksums)
+    {
+        this.model = model;
+        this.alpha = alpha;
+        this.lambda = lambda;
+        this.modified = modified;
+        this.ratings = ratings;
+        this.rowChecksums = rowChecksums;
+        this.columnChecksums = columnChecksums;
+    }
+
+    //  Maps the file and checks it. Throws IOException if it isn't a valid snapshot.
+    public static Snapshot read(String path) throws IOException
+    {
+        int users, pois, k, sums;
+        int[] rowChecksums, columnChecksums;
+        long size;
+        MappedByteBuffer file;
+        CRC32C crc = new CRC32C();
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+
+        try
+        {
+            size = channel.size();
+            if (size < HEADER || size > Integer.MAX_VALUE)
+                throw new IOException("Invalid snapshot size.");
+
+            file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            channel.close();    //  The mapping stays valid.
+        }
+
+        file.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (file.getInt(0) != MAGIC || file.getInt(4) != FORMAT)
+            throw new IOException("Not a snapshot of this format.");
+
+        users = file.getInt(16);
+        pois = file.getInt(20);
+        k = file.getInt(24);
+
+        if (users < 0 || pois < 0 || k <= 0 || size != HEADER + (8L * k + 4) * ((long) users + pois))
+            throw new IOException("Invalid snapshot dimensions.");
+
+        crc.update(file.slice(0, CHECKSUM));
+        crc.update(file.slice(HEADER, (int) size - HEADER));
+        if (crc.getValue() != file.getLong(CHECKSUM))
+            throw new IOException("Snapshot checksum mismatch.");
+
+        sums = HEADER + 8 * k * (users + pois);
+        rowChecksums = new int[pois];
+        columnChecksums = new int[users];
+        file.slice(sums, 4 * pois).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(rowChecksums);
+        file.slice(sums + 4 * pois, 4 * users).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(columnChecksums);
+
+        return new Snapshot(new Model(file.getLong(8), k, doubles(file, HEADER, users * k), doubles(file, HEADER + 8 * users * k, pois * k), null),
+                            file.getInt(28), file.getDouble(32), file.getLong(40), file.getLong(48), rowChecksums, columnChecksums);
+    }
+
+    //  Writes the model and the checksums of the data it was trained on to the file, replacing it.
+    public static void write(String path, Model model, int alpha, double lambda, long modified, long ratings,
+                             int[] rowChecksums, int[] columnChecksums) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        CRC32C crc = new CRC32C();
+        Path target = Paths.get(path), tmp = Paths.get(path + ".tmp");
+        FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+
+        header.putInt(MAGIC).putInt(FORMAT).putLong(model.version);
+        header.putInt(model.users()).putInt(model.pois()).putInt(model.k).putInt(alpha);
+        header.putDouble(lambda).putLong(modified).putLong(ratings);
+        crc.update(header.array(), 0, CHECKSUM);
+
+        try
+        {
+            channel.position(HEADER);
+            write(channel, model.x(), buffer, crc);
+            write(channel, model.y(), buffer, crc);
+            write(channel, rowChecksums, buffer, crc);
+            write(channel, columnChecksums, buffer, crc);
+
+            header.putLong(CHECKSUM, crc.getValue());
+            header.clear();
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+
+            channel.force(true);
+        }
+        finally
+        {
+            channel.close();
+        }
+
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //  Writes the values of m through buffer, updating the checksum.
+    private static void write(FileChannel channel, DoubleBuffer m, ByteBuffer buffer, CRC32C crc) throws IOException
+    {
+        int n;
+
+        while (m.hasRemaining())
+        {
+            buffer.clear();
+            n = Math.min(m.remaining(), buffer.capacity() / 8);
+            buffer.asDoubleBuffer().put(m.slice(m.position(), n));
+            m.position(m.position() + n);
+            buffer.limit(8 * n);
+
+            crc.update(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    //  Writes the values of sums through buffer, updating the checksum.
+    private static void write(FileChannel channel, int[] sums, ByteBuffer buffer, CRC32C crc) throws IOException
+    {
+        int n;
+
+        for(int offset = 0; offset < sums.length; offset += n)
+        {
+            buffer.clear();
+            n = Math.min(sums.length - offset, buffer.capacity() / 4);
+            buffer.asIntBuffer().put(sums, offset, n);
+            buffer.limit(4 * n);
+
+            crc.update(buffer);
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+        }
+    }
+
+    //  A view of n doubles of the file, starting at byte offset.
+    private static DoubleBuffer doubles(ByteBuffer file, int offset, int n)
+    {
+        return file.slice(offset, 8 * n).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    }
+
+    /*************************************** Constants ***************************************/
+
+    private static final int MAGIC = 0x4D534C41;    //  "ALSM"
+    private static final int FORMAT = 2;
+    private static final int CHECKSUM = 56;         //  The position of the checksum.
+    private static final int HEADER = 64;
+    private static final int BUFFER = 1 << 20;
+}
@@ -0,0 +1,168 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ *  Compares the exact solver of the rows of implicit ALS with a few conjugate gradient steps per row (see Kernels.cgRow),
+ *  on random ratings. For each solver it prints the cost after some of the sweeps and the mean time of a sweep.
+ *  Both start from the same random X & Y, on one thread. The cost is the function the solvers minimize,
+ *  with the λ of the solvers, so it can be lower than the one Master reports.
+ *  Usage: java SolverBenchmark [pois] [users] [k] [ratings per poi]
+ */
+public class SolverBenchmark
+{
+    /************************ Settings **************************/
+
+            private static final int SWEEPS = 10;
+            //  The sweeps after which the cost is printed.
+            private static final int[] REPORTED = {1, 2, 3, 5, 10};
+            //  The conjugate gradient steps per row compared, 0 for the exact solver.
+            private static final int[] STEPS = {0, 1, 2, 3, 5};
+            //  As in Master.
+            private static final int ALPHA = 40;
+            private static final double LAMBDA = 0.01;
+
+    /************************************************************/
+
+    //  Main method
+    public static void main(String[] args)
+    {
+        int pois = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        int users = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        int k = (args.length > 2) ? Integer.parseInt(args[2]) : 128;
+        int per = (args.length > 3) ? Integer.parseInt(args[3]) : 50;
+        long start, nanos;
+        int reported;
+        SparseMatrix r = random(pois, users, per, new Random(7));
+        Factors x, y;
+
+        System.out.printf("%d pois, %d users, %d ratings, k = %d\n", pois, users, r.size(), k);
+        System.out.printf("%-8s", "solver");
+        for(int sweep : REPORTED)
+            System.out.printf(" %14s", "sweep " + sweep);
+        System.out.printf(" %12s\n", "ms/sweep");
+
+        for(int steps : STEPS)
+        {
+            x = random(users, k, new Random(3));
+            y = random(pois, k, new Random(5));
+            nanos = 0;
+            reported = 0;
+
+            System.out.printf("%-8s", (steps == 0) ? "exact" : "cg " + steps);
+            for(int sweep = 1; sweep <= SWEEPS; sweep++)
+            {
+                start = System.nanoTime();
+                solve(y, x, r.offsets, r.indices, r.values, steps);
+                solve(x, y, r.columnOffsets, r.columnIndices, r.columnValues, steps);
+                nanos += System.nanoTime() - start;
+
+                if (reported < REPORTED.length && REPORTED[reported] == sweep)
+                {
+                    System.out.printf(" %14.2f", cost(r, x, y));
+                    reported++;
+                }
+            }
+            System.out.printf(" %12.1f\n", nanos / 1e6 / SWEEPS);
+        }
+    }
+
+    //  Solves every row of m against fixed. The conjugate gradient starts from the current values of the rows.
+    private static void solve(Factors m, Factors fixed, int[] offsets, int[] indices, float[] values, int steps)
+    {
+        int k = m.k;
+        double[] g = new double[k * k], a = new double[k * k], v = new double[k];
+        double[] residual = new double[k], direction = new double[k], product = new double[k];
+
+        Kernels.gram(fixed.data, 0, fixed.rows, k, g);
+
+        for(int i = 0; i < m.rows; i++)
+        {
+            if (steps == 0)
+                Kernels.solveRow(fixed.data, k, g, indices, values, offsets[i], offsets[i + 1], ALPHA, LAMBDA, a, v);
+            else
+            {
+                System.arraycopy(m.data, m.row(i), v, 0, k);
+                Kernels.cgRow(fixed.data, k, g, indices, values, offsets[i], offsets[i + 1], ALPHA, LAMBDA, v, steps,
+                              residual, direction, product);
+            }
+
+            System.arraycopy(v, 0, m.data, m.row(i), k);
+        }
+    }
+
+    /*
+     *  Σ c(p - xᵀy)² + λ(Σ‖x‖² + Σ‖y‖²), calculated as in Master.cost():
+     *  Σ XᵀX∘YᵀY + Σobserved [c(p - xᵀy)² - (xᵀy)²] + λ(tr XᵀX + tr YᵀY)
+     */
+    private static double cost(SparseMatrix r, Factors x, Factors y)
+    {
+        int k = x.k;
+        double c, p, s, sum = 0, trace = 0;
+        double[] gx = new double[k * k], gy = new double[k * k];
+
+        Kernels.gram(x.data, 0, x.rows, k, gx);
+        Kernels.gram(y.data, 0, y.rows, k, gy);
+
+        for(int i = 0; i < r.rows; i++)
+            for(int j = r.offsets[i]; j < r.offsets[i + 1]; j++)
+            {
+                c = 1 + ALPHA * r.values[j];
+                p = (r.values[j] > 0) ? 1 : 0;
+                s = Kernels.dot(y.data, y.row(i), x.data, x.row(r.indices[j]), k);
+                sum += c * (p - s) * (p - s) - s * s;
+            }
+
+        for(int a = 0; a < k; a++)
+        {
+            trace += gx[a * k + a] + gy[a * k + a];
+            sum += gx[a * k + a] * gy[a * k + a];
+
+            for(int b = 0; b < a; b++)
+                sum += 2 * gx[a * k + b] * gy[a * k + b];
+        }
+
+        return sum + LAMBDA * trace;
+    }
+
+    //  Ratings from 1 to 5 of about per distinct users for each poi.
+    private static SparseMatrix random(int pois, int users, int per, Random random)
+    {
+        int n;
+        int[] offsets = new int[pois + 1], row;
+        int[] indices = new int[pois * Math.min(2 * per, users)];
+        float[] values;
+
+        for(int i = 0; i < pois; i++)
+        {
+            row = new int[1 + random.nextInt(Math.min(2 * per, users))];
+            for(int j = 0; j < row.length; j++)
+                row[j] = random.nextInt(users);
+            Arrays.sort(row);
+
+            //  Without the repeated users.
+            n = offsets[i];
+            for(int j = 0; j < row.length; j++)
+                if (j == 0 || row[j] != row[j - 1])
+                    indices[n++] = row[j];
+            offsets[i + 1] = n;
+        }
+
+        indices = Arrays.copyOf(indices, offsets[pois]);
+        values = new float[indices.length];
+        for(int j = 0; j < values.length; j++)
+            values[j] = 1 + random.nextInt(5);
+
+        return new SparseMatrix(pois, users, offsets, indices, values);
+    }
+
+    //  Rows of random values in [0, 1), as Master initializes X & Y.
+    private static Factors random(int rows, int k, Random random)
+    {
+        Factors m = new Factors(rows, k);
+
+        for(int i = 0; i < m.data.length; i++)
+            m.data[i] = random.nextDouble();
+
+        return m;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *  A sparse matrix stored both in compressed sparse row (CSR) and compressed sparse column (CSC) form,
+ *  so that both its rows and its columns can be walked contiguously.
+ *  The entries of row i are stored in [offsets[i], offsets[i + 1]), sorted by column.
+ *  The entries of column j are stored in [columnOffsets[j], columnOffsets[j + 1]), sorted by row.
+ */
+public class SparseMatrix
+{
+    public final int rows, cols;
+    //  CSR form.
+    public final int[] offsets;
+    public final int[] indices;             //  The column of each entry.
+    public final float[] values;
+    //  CSC form.
+    public final int[] columnOffsets;
+    public final int[] columnIndices;       //  The row of each entry.
+    public final float[] columnValues;
+
+    //  Constructor, using the given CSR arrays as they are. The CSC form is derived from them.
+    public SparseMatrix(int rows, int cols, int[] offsets, int[] indices, float[] values)
+    {
+        int[] next = new int[cols];
+
+        this.rows = rows;
+        this.cols = cols;
+        this.offsets = offsets;
+        this.indices = indices;
+        this.values = values;
+
+        columnOffsets = new int[cols + 1];
+        columnIndices = new int[indices.length];
+        columnValues = new float[values.length];
+
+        //  Counting sort by column. The rows are visited in order, so each column ends up sorted by row.
+        for(int j = 0; j < offsets[rows]; j++)
+            columnOffsets[indices[j] + 1]++;
+
+        for(int j = 0; j < cols; j++)
+        {
+            columnOffsets[j + 1] += columnOffsets[j];
+            next[j] = columnOffsets[j];
+        }
+
+        for(int i = 0; i < rows; i++)
+            for(int j = offsets[i]; j < offsets[i + 1]; j++)
+            {
+                columnIndices[next[indices[j]]] = i;
+                columnValues[next[indices[j]]] = values[j];
+                next[indices[j]]++;
+            }
+    }
+
+    //  The number of stored entries.
+    public int size() { return offsets[rows]; }
+
+    //  A checksum of the entries of each row, used to tell which rows changed between two versions of the data.
+    public int[] rowChecksums() { return checksums(offsets, indices, values, rows); }
+
+    //  A checksum of the entries of each column.
+    public int[] columnChecksums() { return checksums(columnOffsets, columnIndices, columnValues, cols); }
+
+    private static int[] checksums(int[] offsets, int[] indices, float[] values, int n)
+    {
+        int h;
+        int[] sums = new int[n];
+
+        for(int i = 0; i < n; i++)
+        {
+            h = 1;
+            for(int j = offsets[i]; j < offsets[i + 1]; j++)
+                h = 31 * (31 * h + indices[j]) + Float.floatToIntBits(values[j]);
+            sums[i] = h;
+        }
+
+        return sums;
+    }
+}
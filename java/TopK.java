@@ -0,0 +1,95 @@
+/*
+ *  Keeps the K ids with the highest scores offered to it, using a fixed-size min-heap
+ *  of primitive arrays. The root is the lowest score kept, so most candidates are
+ *  rejected with a single comparison and nothing is allocated per candidate.
+ */
+public class TopK
+{
+    private int size;
+    private final int[] ids;
+    private final double[] scores;
+
+    //  Constructor.
+    public TopK(int k)
+    {
+        ids = new int[k];
+        scores = new double[k];
+    }
+
+    public void clear() { size = 0; }
+
+    public int size() { return size; }
+
+    //  Offers a candidate, it is kept if it is among the K highest so far.
+    public void offer(int id, double score)
+    {
+        if (size < ids.length)
+        {
+            ids[size] = id;
+            scores[size] = score;
+            up(size++);
+        }
+        else if (size > 0 && score > scores[0])
+        {
+            ids[0] = id;
+            scores[0] = score;
+            down(0);
+        }
+    }
+
+    //  Empties the heap, returning the ids kept in descending order of score.
+    public int[] sorted()
+    {
+        int[] result = new int[size];
+
+        for(int i = size - 1; i >= 0; i--)
+        {
+            result[i] = ids[0];
+            size--;
+            ids[0] = ids[size];
+            scores[0] = scores[size];
+            down(0);
+        }
+
+        return result;
+    }
+
+    private void up(int i)
+    {
+        int parent;
+
+        while (i > 0 && scores[i] < scores[parent = (i - 1) >>> 1])
+        {
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void down(int i)
+    {
+        int child;
+
+        while ((child = 2 * i + 1) < size)
+        {
+            if (child + 1 < size && scores[child + 1] < scores[child])
+                child++;
+
+            if (scores[i] <= scores[child])
+                break;
+
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j)
+    {
+        int id = ids[i];
+        double score = scores[i];
+
+        ids[i] = ids[j];
+        scores[i] = scores[j];
+        ids[j] = id;
+        scores[j] = score;
+    }
+}
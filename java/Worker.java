@@ -1,6 +1,9 @@
 import java.io.*;
 import java.net.*;
-import org.apache.commons.math3.linear.*;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Worker
 {
@@ -13,16 +16,37 @@ public class Worker
 
     //  CPU and memory specs of the system.
     private long[] specs;
-    //  p (column or row) vector of k user or item.
-    private RealVector pk;
-    private Socket request;
-    //  Dimensions received from Master.
+    //  α value used in deriving C from the ratings and λ used in regularization, both received from Master.
+    private int alpha;
+    private double lambda;
+    private int steps;      //  The conjugate gradient steps per row, 0 for the exact solver (see Kernels.cgRow).
+    /*
+     *  The ratings of the rows of Y & X, any of which Master may ask for.
+     *  They are kept for the whole calculation and replaced when Master sends new ones.
+     *  entries: the ones used in the current calculation.
+     */
+    private Entries rows, columns, entries;
+    private Link link;      //  The connection to Master.
+    //  Dimensions received from Master: the number of rows of Y & X to be calculated.
     private int[] dimensions;
     // if done == true no more computation.
     private boolean turn, done;
-    private ObjectInputStream in;
-    private ObjectOutputStream out;
-    private RealMatrix m, mm, c, p, ck, result;
+    //  m: the X or Y received, mm: the lower triangle of MᵀM, result: the rows [start, end) being calculated.
+    private Factors m, result;
+    //  The X & Y received last, read into again by the next phase of their kind. The rows of the results are calculated in results.
+    private Factors[] received = new Factors[2];
+    private double[] results;
+    //  The Gram matrices of the X & Y being received in pieces, and the rows received of each.
+    private double[][] grams = new double[2][];
+    private int[] pieces = new int[2];
+    //  The previous rows being calculated, the conjugate gradient starts from them. null if there are none.
+    private Factors previous;
+    private double[] mm;
+    private int start, end;
+    //  The rows are solved in parallel, using as many threads as the CPU cores reported to Master.
+    private ForkJoinPool pool;
+    //  Scratch buffers of each thread, reused for every row it solves.
+    private ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>();
 
     public Worker() { initialize(); }
 
@@ -34,16 +58,20 @@ public class Worker
         specs[0] = Runtime.getRuntime().availableProcessors();
         specs[1] = Runtime.getRuntime().freeMemory() / (1024 * 1024);
 
+        pool = new ForkJoinPool((int) specs[0]);
+
         try
         {   //  Connecting to Master.
-            request = new Socket(IP_ADDRESS, PORT);
+            link = new Link(SocketChannel.open(new InetSocketAddress(IP_ADDRESS, PORT)));
             System.out.println("Connected to Master.\n");
 
-            out = new ObjectOutputStream(request.getOutputStream());
-
             //  Sending specs to Master.
-            out.writeObject(specs);
-            out.flush();
+            link.begin(Link.SPECS);
+            link.putLong(specs[0]);
+            link.putLong(specs[1]);
+            link.send();
+
+            new Heartbeat().start();
         }
         catch(UnknownHostException uhExc)
         {
@@ -55,14 +83,12 @@ public class Worker
         }
     }
 
-    //  Closing socket and streams.
+    //  Closing the connection.
     private boolean close()
     {
         try
         {
-            in.close();
-            out.close();
-            request.close();
+            link.close();
         }
         catch(IOException ioExc)
         {
@@ -75,116 +101,181 @@ public class Worker
     //  Sending results to Master.
     private void sendResults() throws IOException
     {
-        out.writeObject(result);
-        out.flush();
+        link.begin(Link.RESULT);
+        link.putInt(start);
+        link.putMatrix(result);
+        link.send();
+    }
+
+    //  Reading the ratings of the rows of Y & X. The X or Y of a previous calculation is dropped.
+    private void receiveRatings()
+    {
+        m = null;
+        alpha = link.getInt();
+        lambda = link.getDouble();
+        steps = link.getInt();
+        dimensions = new int[] {link.getInt(), link.getInt()};
+        rows = new Entries(link, dimensions[0]);
+        columns = new Entries(link, dimensions[1]);
+    }
+
+    /*
+     *  Reading rows of the X (or Y) being calculated into the buffer of its kind, adding them to its Gram matrix.
+     *  The buffer isn't the one of the phase running, which is of the other kind.
+     */
+    private void receivePiece() throws IOException
+    {
+        byte flags = link.getByte();
+        int kind = ((flags & 1) == 1) ? 0 : 1, total = link.getInt(), start = link.getInt(), n = link.getInt(), k = link.getInt();
+
+        if (start < 0 || n < 0 || start + n > total || k <= 0)
+            throw new IOException("Unexpected piece.");
+
+        //  The first piece of a matrix.
+        if ((flags & 2) == 2 || grams[kind] == null)
+        {
+            if (received[kind] == null || received[kind].rows != total || received[kind].k != k)
+                received[kind] = new Factors(total, k);
+
+            grams[kind] = new double[k * k];
+            pieces[kind] = 0;
+        }
+        else if (received[kind].rows != total || received[kind].k != k)
+            throw new IOException("Unexpected piece.");
+
+        link.getDoubles(received[kind].data, received[kind].row(start), n * k);
+        Kernels.gram(received[kind].data, start, start + n, k, grams[kind]);
+        pieces[kind] += n;
     }
 
     //  Calculates the matrix.
     private void calculate()
     {
+        byte frame;
+        int kind;
+
         try
         {
-            in = new ObjectInputStream(request.getInputStream());
-            //  Reading input from Master.
-            done = in.readBoolean();
-            //  Dimensions used in calculation.
-            dimensions = (int[]) in.readObject();
-            // If turn == true then m = X.``
-            turn = in.readBoolean();
-            c = (RealMatrix) in.readObject();
-            p = (RealMatrix) in.readObject();
-            m = (RealMatrix) in.readObject();
-
             while(true)
             {
-                //  Creating result matrix.
-                result = MatrixUtils.createRealMatrix(dimensions[0], dimensions[1]);
-                preCalculate();
+                frame = link.receive();
+
+                //  Are we done?
+                done = (frame == Link.DONE);
 
+                if (done)
+                    break;
 
-                for(int k = 0; k < dimensions[0]; k++)
+                //  The ratings of the assigned rows, sent again whenever Master retrains on new data.
+                if (frame == Link.RATINGS)
                 {
-                    System.out.printf("Calculating row %d of %d.\n", k + 1, dimensions[0]);
-                    //  Extracts the k column or row of P matrix.
-                    calculatePkVector(k);
-                    //  Creates the diagonal Cu or Ci matrix.
-                    calculateCkMatrix(k);
-
-                    //  Calculates the row of the result.
-                    result.setRowVector(k, calculateMatrixRow());
+                    receiveRatings();
+                    continue;
                 }
 
-                System.out.println("========================");
+                //  Rows of the matrix being calculated, which the next phase calculates against.
+                if (frame == Link.PIECE && rows != null)
+                {
+                    receivePiece();
+                    continue;
+                }
 
-                //  Sends results to Master.
-                sendResults();
+                if (frame == Link.CHUNK && m != null)
+                {
+                    //  The rows [start, end) of the result.
+                    start = link.getInt();
+                    end = link.getInt();
 
-                //  Are we done?
-                done = in.readBoolean();
+                    if (start < 0 || end > entries.rows || start > end)
+                        throw new IOException("Unexpected chunk.");
 
-                if (done)
-                    break;
+                    if (results == null || results.length < (end - start) * m.k)
+                        results = new double[(end - start) * m.k];
+                    result = new Factors(end - start, m.k, results);
+                    pool.invoke(new Rows(start, end));
+
+                    //  Sends results to Master.
+                    sendResults();
+                    continue;
+                }
+
+                if (frame != Link.WORK || rows == null)
+                    throw new IOException("Unexpected frame.");
+
+                //  Only the updated X or Y is received, unless it was received in pieces. If turn == true then m = X.
+                turn = (link.getByte() == 1);
+                kind = turn ? 0 : 1;
+
+                if (link.getByte() == 1)
+                {
+                    if (received[kind] == null || grams[kind] == null || pieces[kind] != received[kind].rows)
+                        throw new IOException("Incomplete matrix.");
+
+                    m = received[kind];
+                    mm = grams[kind];
+                }
+                else
+                {
+                    m = link.getMatrix(received[kind]);
+                    received[kind] = m;
+                    preCalculate();
+                }
+
+                //  The next pieces of this kind are of a new matrix.
+                grams[kind] = null;
+                pieces[kind] = 0;
 
-                //  Prepares for next calculation.
-                dimensions = (int[]) in.readObject();
-                turn = in.readBoolean();
-                c = (RealMatrix) in.readObject();
-                p = (RealMatrix) in.readObject();
-                m = (RealMatrix) in.readObject();
+                //  If turn == X then Y is being calculated, using the rows of the input matrix.
+                entries = (turn == X) ? rows : columns;
+
+                //  Received as the fixed matrix of the previous phase. Rows of it may be replaced by pieces of the result
+                //  meanwhile, but only once they are calculated.
+                previous = received[1 - kind];
+                if (previous != null && (previous.rows != entries.rows || previous.k != m.k))
+                    previous = null;
+
+                System.out.printf("Calculating %c, %d rows.\n", (turn == X) ? 'y' : 'x', entries.rows);
             }
         }
         catch(IOException ioExc)
         {
             ioExc.printStackTrace();
         }
-        catch(ClassNotFoundException cnfExc)
-        {
-            cnfExc.printStackTrace();
-        }
-    }
-
-    // Extracts p row or column of matrix P.
-    private void calculatePkVector(int k)
-    {
-        //  If turn == X then Y is being calculated.
-        if (turn == X)
-            pk = p.getRowVector(k);
-        else
-            pk = p.getColumnVector(k);
     }
 
-    //  Creates Ck diagonal matrix.
-    private void calculateCkMatrix(int k)
+    //  Pre-calculation
+    private void preCalculate()
     {
-        double[] diagonal;
+        if (mm == null || mm.length != m.k * m.k)
+            mm = new double[m.k * m.k];
 
-        //  If turn == X then Y is being calculated.
-        if (turn == X)
-            diagonal = c.getRow(k);
-        else
-            diagonal = c.getColumn(k);
-
-        ck = MatrixUtils.createRealDiagonalMatrix(diagonal);
+        Arrays.fill(mm, 0);
+        Kernels.gram(m.data, 0, m.rows, m.k, mm);
     }
 
-    //  Pre-calculation
-    private void preCalculate() { mm = m.transpose().multiply(m); }
-
-    //  The actual computation of the result matrix row.
-    private RealVector calculateMatrixRow()
+    //  The actual computation of row k of the matrix, written straight to the result of its chunk.
+    private void calculateMatrixRow(int k)
     {
-        RealMatrix I = MatrixUtils.createRealIdentityMatrix(ck.getRowDimension());
-        RealMatrix a = ck.subtract(I);
+        int n = m.k;
+        Scratch buffers = scratch.get();
 
-        a = mm.add(m.transpose().multiply(a.multiply(m)));
-        I = MatrixUtils.createRealIdentityMatrix((a.getRowDimension()));
-        a = a.add(I.scalarMultiply(LAMBDA));
-        a = (new QRDecomposition(a)).getSolver().getInverse();
+        if (buffers == null || buffers.v.length != n)
+        {
+            buffers = new Scratch(n);
+            scratch.set(buffers);
+        }
 
-        RealVector v = ck.operate(pk);
-        v = m.transpose().operate(v);
+        //  mm is reused by every row, it is copied to the buffer.
+        if (steps == 0 || previous == null)
+            Kernels.solveRow(m.data, n, mm, entries.indices, entries.ratings, entries.offsets[k], entries.offsets[k + 1], alpha, lambda, buffers.a, buffers.v);
+        else
+        {
+            System.arraycopy(previous.data, previous.row(k), buffers.v, 0, n);
+            Kernels.cgRow(m.data, n, mm, entries.indices, entries.ratings, entries.offsets[k], entries.offsets[k + 1], alpha, lambda,
+                          buffers.v, steps, buffers.r, buffers.p, buffers.ap);
+        }
 
-        return a.operate(v);
+        System.arraycopy(buffers.v, 0, result.data, result.row(k - start), n);
     }
 
     //  Main Method
@@ -195,11 +286,117 @@ public class Worker
         worker.calculate();
 
         worker.close();
+        worker.pool.shutdown();
 
         System.out.println("Worker exited.");
     }
 
+    /*****************************************************************************************/
+
+    /*
+     *  The ratings of a set of rows, grouped by row.
+     *  The entries of row k are stored in [offsets[k], offsets[k + 1]).
+     */
+    private static class Entries
+    {
+        int rows;           //  The number of rows.
+        int[] offsets;
+        int[] indices;      //  The row of M each entry refers to.
+        float[] ratings;
+
+        //  Reads the ratings of the given rows, written by Link.putSparse. They are already oriented by Master.
+        Entries(Link link, int rows)
+        {
+            this.rows = rows;
+            offsets = new int[rows + 1];
+            link.getInts(offsets, 0, rows + 1);
+            indices = new int[offsets[rows]];
+            ratings = new float[offsets[rows]];
+            link.getInts(indices, 0, offsets[rows]);
+            link.getFloats(ratings, 0, offsets[rows]);
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Solves a range of rows, splitting it among the threads of the pool.
+    private class Rows extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int start, end;     //  The rows [start, end) of the result.
+
+        Rows(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute()
+        {
+            int middle;
+
+            if (end - start <= GRAIN)
+            {
+                //  Each row is written to its own part of the result, so no synchronization is needed.
+                for(int k = start; k < end; k++)
+                    calculateMatrixRow(k);
+                return;
+            }
+
+            middle = (start + end) >>> 1;
+            invokeAll(new Rows(start, middle), new Rows(middle, end));
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  The buffers used by a thread to set up and solve the system of a row.
+    private static class Scratch
+    {
+        double[] a, v, r, p, ap;
+
+        Scratch(int k)
+        {
+            a = new double[k * k];
+            v = new double[k];
+            r = new double[k];
+            p = new double[k];
+            ap = new double[k];
+        }
+    }
+
+    /*****************************************************************************************/
+
+    //  Sends heartbeats to Master while the Worker is connected, so it can tell a busy Worker from a dead one.
+    private class Heartbeat extends Thread
+    {
+        Heartbeat() { setDaemon(true); }
+
+        public void run()
+        {
+            try
+            {
+                while (true)
+                {
+                    Thread.sleep(HEARTBEAT);
+                    link.beat();
+                }
+            }
+            catch(IOException ioExc)    //  The connection is closed, which the main thread finds out as well.
+            {
+            }
+            catch(InterruptedException iExc)
+            {
+                iExc.printStackTrace();
+            }
+        }
+    }
+
     //  X is the X matrix.
     private static final boolean X = true;
-    private static final double LAMBDA = 0.01;
+    //  Milliseconds between heartbeats.
+    private static final int HEARTBEAT = 1000;
+    //  Maximum number of rows solved by a single task.
+    private static final int GRAIN = 8;
 }
\ No newline at end of file